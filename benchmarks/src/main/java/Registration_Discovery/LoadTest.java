@@ -0,0 +1,232 @@
+package Registration_Discovery;
+
+import com.example.websearch.SearchResponse;
+import com.example.websearch.SearchService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// End-to-end load test of a whole cluster in one JVM, with no external services.
+// Starts an embedded ZooKeeper server, then a leader and N workers on local ports through the real
+// LeaderElection and ServiceRegistry flow, each worker indexing its own generated documents folder,
+// and drives queries through the web server's SearchService at a target rate.
+// Queries are sent on schedule whether or not the previous ones were answered, and latency is measured from
+// the scheduled send time: an overloaded cluster shows up as higher latency, not as a lower request rate.
+// Settings are loadtest.* system properties, run once per worker count to measure scaling:
+//   for n in 1 2 4 8; do java -Dloadtest.workers=$n -cp target/benchmarks.jar Registration_Discovery.LoadTest; done
+public final class LoadTest {
+    private static final int WORKERS = Integer.getInteger("loadtest.workers", 2);
+    private static final int DOCUMENTS_PER_WORKER = Integer.getInteger("loadtest.documentsPerWorker", 2000);
+    private static final int WORDS_PER_DOCUMENT = Integer.getInteger("loadtest.wordsPerDocument", 300);
+    private static final int VOCABULARY = Integer.getInteger("loadtest.vocabulary", 50000);
+    // "common", "rare" or "mixed" words, see SyntheticCorpus.query
+    private static final String QUERY_SHAPE = System.getProperty("loadtest.queryShape", "mixed");
+    private static final int QUERY_TERMS = Integer.getInteger("loadtest.queryTerms", 3);
+    private static final int DISTINCT_QUERIES = Integer.getInteger("loadtest.distinctQueries", 1000);
+    private static final double QPS = Double.parseDouble(System.getProperty("loadtest.qps", "50"));
+    private static final int WARMUP_SECONDS = Integer.getInteger("loadtest.warmupSeconds", 10);
+    private static final int DURATION_SECONDS = Integer.getInteger("loadtest.durationSeconds", 30);
+    private static final int ZOOKEEPER_PORT = Integer.getInteger("loadtest.zookeeperPort", 12181);
+    // The leader listens on the base port, the workers on the following ones
+    private static final int BASE_PORT = Integer.getInteger("loadtest.basePort", 9090);
+    private static final long STARTUP_TIMEOUT_MILLIS = 120000;
+
+    // Stages reported next to the end-to-end latency, see Metrics
+    private static final String[] STAGES = {"leader.webRequest", "coordinator.query", "coordinator.statsPhase",
+            "coordinator.workerRoundTrip", "coordinator.score", "coordinator.merge", "worker.request", "worker.postings"};
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("loadtest");
+        String zookeeperAddress = "127.0.0.1:" + ZOOKEEPER_PORT;
+        // SearchService reads its ZooKeeper address once, when its class is loaded
+        System.setProperty("zookeeper.address", zookeeperAddress);
+        // The distinct queries repeat, measure the workers rather than the Coordinator's cache unless asked to
+        if (System.getProperty("coordinator.cacheSize") == null) {
+            System.setProperty("coordinator.cacheSize", "0");
+        }
+
+        ServerCnxnFactory zookeeperServer = startZooKeeper(root.resolve("zookeeper").toFile());
+        try {
+            ZooKeeper zooKeeper = connect(zookeeperAddress);
+            zooKeeper.create("/election", new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            // The first node to volunteer becomes the leader, start the workers once it is elected
+            startNode(zookeeperAddress, BASE_PORT, null);
+            awaitLeader(zooKeeper);
+            for (int i = 1; i <= WORKERS; i++) {
+                byte[][] documents = SyntheticCorpus.documents(DOCUMENTS_PER_WORKER, WORDS_PER_DOCUMENT, VOCABULARY, i);
+                File folder = SyntheticCorpus.writeFolder(documents, root.resolve("documents" + (BASE_PORT + i)));
+                startNode(zookeeperAddress, BASE_PORT + i, folder.getPath());
+            }
+            for (int i = 1; i <= WORKERS; i++) {
+                awaitListening(BASE_PORT + i); // The worker has opened its index
+            }
+            System.out.println("Cluster ready: 1 leader and " + WORKERS + " workers, " + DOCUMENTS_PER_WORKER + " documents each");
+
+            SearchService searchService = new SearchService(new SimpleMeterRegistry());
+            String[] queries = new String[DISTINCT_QUERIES];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = SyntheticCorpus.query(QUERY_SHAPE, QUERY_TERMS, VOCABULARY, i);
+            }
+
+            drive(searchService, queries, WARMUP_SECONDS, new LatencyHistogram());
+            for (String stage : STAGES) {
+                Metrics.histogram(stage).reset();
+            }
+            LatencyHistogram latency = new LatencyHistogram();
+            report(drive(searchService, queries, DURATION_SECONDS, latency), latency);
+            zooKeeper.close();
+        } finally {
+            zookeeperServer.shutdown();
+            SyntheticCorpus.delete(root.toFile());
+        }
+        System.exit(0); // The nodes have no shutdown, their threads would keep the JVM alive
+    }
+
+    private static ServerCnxnFactory startZooKeeper(File dataDirectory) throws IOException, InterruptedException {
+        ZooKeeperServer server = new ZooKeeperServer(dataDirectory, dataDirectory, 2000);
+        ServerCnxnFactory factory = ServerCnxnFactory.createFactory(ZOOKEEPER_PORT, 1000);
+        factory.startup(server);
+        return factory;
+    }
+
+    private static ZooKeeper connect(String zookeeperAddress) throws IOException, InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zooKeeper = new ZooKeeper(zookeeperAddress, 3000, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        });
+        if (!connected.await(STARTUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new IOException("Could not connect to ZooKeeper at " + zookeeperAddress);
+        }
+        return zooKeeper;
+    }
+
+    // Same steps as Application.main, with the node's own documents folder. A worker serves its
+    // requests on the thread that elected it, so every node gets a thread.
+    private static void startNode(String zookeeperAddress, int port, String documentsPath) throws IOException {
+        ZooKeeper zooKeeper = new Application().connectToZookeeper(zookeeperAddress);
+        ServiceRegistry serviceRegistry = new ServiceRegistry(zooKeeper);
+        LeaderElection leaderElection = new LeaderElection(zooKeeper, new OnElectionAction(serviceRegistry, port, documentsPath));
+        Thread node = new Thread(() -> {
+            try {
+                leaderElection.volunteerForLeadership();
+                leaderElection.reelectLeader();
+            } catch (KeeperException | InterruptedException e) {
+                System.err.println("Node on port " + port + " failed: " + e);
+            }
+        }, "node-" + port);
+        node.setDaemon(true);
+        node.start();
+    }
+
+    private static void awaitLeader(ZooKeeper zooKeeper) throws Exception {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (zooKeeper.exists("/coordinator/leader", false) == null) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("No leader elected");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static void awaitListening(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Nothing listening on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // Outcome counts and timing of one run
+    private static class Run {
+        final Map<String, LongAdder> outcomes = new TreeMap<>();
+        long sent;
+        long sendNanos; // Time taken to send the queries, longer than planned when the sender falls behind
+        long totalNanos; // Until the last answer
+
+        Run() {
+            for (String outcome : new String[]{"complete", "partial", "timeout", "error"}) {
+                outcomes.put(outcome, new LongAdder());
+            }
+        }
+
+        long answered() {
+            return outcomes.get("complete").sum() + outcomes.get("partial").sum();
+        }
+    }
+
+    // Send queries at the target rate for the given time, then wait for all of them to be answered
+    private static Run drive(SearchService searchService, String[] queries, int seconds, LatencyHistogram latency) {
+        Run run = new Run();
+        Random random = new Random(seconds);
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / QPS);
+        long count = (long) (QPS * seconds);
+        List<CompletableFuture<SearchResponse>> searches = new ArrayList<>((int) Math.min(count, Integer.MAX_VALUE));
+
+        long startNanos = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            long scheduledNanos = startNanos + i * periodNanos;
+            long delay = scheduledNanos - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            String query = queries[random.nextInt(queries.length)];
+            searches.add(searchService.sendQueryToLeader(query).whenComplete((response, e) -> {
+                latency.recordSince(scheduledNanos);
+                run.outcomes.get(SearchService.outcome(response, e)).increment();
+            }));
+        }
+        run.sent = count;
+        run.sendNanos = System.nanoTime() - startNanos;
+        CompletableFuture.allOf(searches.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        run.totalNanos = System.nanoTime() - startNanos;
+        return run;
+    }
+
+    private static void report(Run run, LatencyHistogram latency) {
+        double sendSeconds = run.sendNanos / 1e9;
+        double totalSeconds = run.totalNanos / 1e9;
+        System.out.println();
+        System.out.printf("Workers: %d, documents per worker: %d, query shape: %s, %d terms%n",
+                WORKERS, DOCUMENTS_PER_WORKER, QUERY_SHAPE, QUERY_TERMS);
+        System.out.printf("Target: %.1f queries/s for %d s%n", QPS, DURATION_SECONDS);
+        System.out.printf("Sent: %d queries at %.1f/s%n", run.sent, run.sent / sendSeconds);
+        System.out.printf("Throughput: %d answered in %.2f s, %.1f queries/s%n", run.answered(), totalSeconds, run.answered() / totalSeconds);
+        System.out.println("Outcomes: " + run.outcomes);
+        System.out.printf("Latency (ms): p50 %.2f  p95 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  mean %.2f%n",
+                latency.getP50Millis(), latency.getP95Millis(), latency.getP99Millis(), latency.getP999Millis(),
+                latency.getMaxMillis(), latency.getMeanMillis());
+        System.out.println("Stages (ms):");
+        for (String stage : STAGES) {
+            LatencyHistogram histogram = Metrics.histogram(stage);
+            System.out.printf("  %-28s count %8d  p50 %8.2f  p99 %8.2f%n",
+                    stage, histogram.getCount(), histogram.getP50Millis(), histogram.getP99Millis());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package Registration_Discovery;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Coordinator side of a query: TF-IDF scoring of the documents returned by the workers,
+// the document frequencies of a worker's result, and the merge of the ranked shard lists
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoringBenchmark {
+    @Param({"1", "8"})
+    public int shards;
+
+    @Param({"1000", "10000"})
+    public int documentsPerShard;
+
+    @Param({"1", "4"})
+    public int queryTerms;
+
+    @Param({"100"})
+    public int topK;
+
+    private QueryTerms terms;
+    private List<ShardResult> shardResults;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        terms = QueryTerms.of(SyntheticCorpus.query("mixed", queryTerms, 20000, 7));
+        shardResults = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            List<DocumentTermsInfo> results = SyntheticCorpus.results(documentsPerShard, terms.toArray(), shard);
+            shardResults.add(new ShardResult(0, 0, results.size(), Coordinator.calculateDocumentFrequency(results), results));
+        }
+        Coordinator.scoreShardResults(shardResults, terms); // Ranked lists for the merge benchmark
+    }
+
+    @Benchmark
+    public List<ShardResult> scoreShardResults() {
+        Coordinator.scoreShardResults(shardResults, terms);
+        return shardResults;
+    }
+
+    @Benchmark
+    public Map<String, Integer> calculateDocumentFrequency() {
+        return Coordinator.calculateDocumentFrequency(shardResults.get(0).getDocuments());
+    }
+
+    @Benchmark
+    public Map<String, Double> mergeRankedResults() {
+        return Coordinator.mergeRankedResults(shardResults, topK);
+    }
+}
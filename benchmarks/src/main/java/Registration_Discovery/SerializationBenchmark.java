@@ -0,0 +1,55 @@
+package Registration_Discovery;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Round trips of the documents a worker sends to the Coordinator, with the binary protocol
+// (full results and top-K responses) and with Java object serialization
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"100", "10000"})
+    public int documents;
+
+    @Param({"1", "4"})
+    public int queryTerms;
+
+    private List<DocumentTermsInfo> results;
+    private ShardResult shardResult;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] terms = QueryTerms.of(SyntheticCorpus.query("mixed", queryTerms, 20000, 7)).toArray();
+        results = SyntheticCorpus.results(documents, terms, 1);
+        shardResult = new ShardResult(1, 1, documents, Coordinator.calculateDocumentFrequency(results), results);
+    }
+
+    @Benchmark
+    public List<DocumentTermsInfo> binarySearchResponse() throws IOException {
+        return WireProtocol.decodeSearchResponse(WireProtocol.encodeSearchResponse(results));
+    }
+
+    @Benchmark
+    public ShardResult binaryTopKResponse() throws IOException {
+        return WireProtocol.decodeTopKResponse(WireProtocol.encodeTopKResponse(shardResult));
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<DocumentTermsInfo> javaSerialization() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(results);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (List<DocumentTermsInfo>) in.readObject();
+        }
+    }
+}
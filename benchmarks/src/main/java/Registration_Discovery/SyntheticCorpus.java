@@ -0,0 +1,94 @@
+package Registration_Discovery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Deterministic synthetic documents and queries for the benchmarks.
+// Words are "w<rank>" drawn with a Zipf-like distribution over the vocabulary: a few words are in
+// almost every document and most words are rare, like in natural text.
+final class SyntheticCorpus {
+    private SyntheticCorpus() {
+    }
+
+    static String word(int rank) {
+        return "w" + rank;
+    }
+
+    // Rank between 1 and vocabulary, rank r is drawn with a probability close to 1 / r
+    private static int randomRank(Random random, int vocabulary) {
+        return Math.min(vocabulary, (int) Math.pow(vocabulary, random.nextDouble()));
+    }
+
+    static byte[][] documents(int count, int wordsPerDocument, int vocabulary, long seed) {
+        Random random = new Random(seed);
+        byte[][] documents = new byte[count][];
+        StringBuilder text = new StringBuilder(wordsPerDocument * 7);
+        for (int i = 0; i < count; i++) {
+            text.setLength(0);
+            for (int j = 0; j < wordsPerDocument; j++) {
+                text.append(word(randomRank(random, vocabulary))).append(j % 16 == 15 ? '\n' : ' ');
+            }
+            documents[i] = text.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return documents;
+    }
+
+    // Query shapes: "common" words found in most documents, "rare" words from the tail of the
+    // vocabulary, or "mixed" alternating both
+    static String query(String shape, int terms, int vocabulary, long seed) {
+        Random random = new Random(seed);
+        List<String> words = new ArrayList<>(terms);
+        for (int i = 0; i < terms; i++) {
+            boolean common = "common".equals(shape) || ("mixed".equals(shape) && i % 2 == 0);
+            int rank = common
+                    ? 1 + random.nextInt(Math.min(10, vocabulary))
+                    : vocabulary - random.nextInt(Math.max(1, vocabulary / 100));
+            words.add(word(rank));
+        }
+        return String.join(" ", words);
+    }
+
+    // Write the documents as .txt files of a new temporary folder
+    static File writeFolder(byte[][] documents) throws IOException {
+        return writeFolder(documents, Files.createTempDirectory("corpus"));
+    }
+
+    static File writeFolder(byte[][] documents, Path folder) throws IOException {
+        Files.createDirectories(folder);
+        for (int i = 0; i < documents.length; i++) {
+            Files.write(folder.resolve(String.format("doc%06d.txt", i)), documents[i]);
+        }
+        return folder.toFile();
+    }
+
+    static void delete(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // Results of one worker for a query: every document with a random frequency for each term,
+    // absent from about half of the documents
+    static List<DocumentTermsInfo> results(int documents, String[] terms, long seed) {
+        Random random = new Random(seed);
+        List<DocumentTermsInfo> results = new ArrayList<>(documents);
+        for (int i = 0; i < documents; i++) {
+            double[] termFrequencies = new double[terms.length];
+            for (int termId = 0; termId < terms.length; termId++) {
+                termFrequencies[termId] = random.nextBoolean() ? random.nextDouble() * 0.01 : 0.0;
+            }
+            results.add(new DocumentTermsInfo(String.format("doc%06d.txt", seed * documents + i), terms, termFrequencies));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,74 @@
+package Registration_Discovery;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Worker search paths: scanning one document file, and reading the postings of the query words from the index
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkerBenchmark {
+    @Param({"1000", "10000"})
+    public int documents;
+
+    @Param({"300"})
+    public int wordsPerDocument;
+
+    @Param({"20000"})
+    public int vocabulary;
+
+    @Param({"1", "4"})
+    public int queryTerms;
+
+    @Param({"common", "rare", "mixed"})
+    public String queryShape;
+
+    private File folder;
+    private File indexDirectory;
+    private InvertedIndex index;
+    private File[] files;
+    private String[] queryWords;
+    private MultiTermScanner scanner;
+    private int nextFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = SyntheticCorpus.writeFolder(SyntheticCorpus.documents(documents, wordsPerDocument, vocabulary, 42));
+        indexDirectory = new File(folder.getParentFile(), folder.getName() + ".index");
+        index = InvertedIndex.openOrBuild(folder, indexDirectory);
+        files = folder.listFiles((dir, name) -> name.endsWith(".txt"));
+        Arrays.sort(files);
+        queryWords = QueryTerms.of(SyntheticCorpus.query(queryShape, queryTerms, vocabulary, 7)).toArray();
+        scanner = new MultiTermScanner(Arrays.asList(queryWords));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCorpus.delete(folder);
+        SyntheticCorpus.delete(indexDirectory);
+    }
+
+    // Scan path: read one file and count the query words, a different file on every call
+    @Benchmark
+    public DocumentTermsInfo processFile() {
+        File file = files[nextFile];
+        nextFile = (nextFile + 1) % files.length;
+        return Worker.processFile(file, queryWords, scanner);
+    }
+
+    // Index path: occurrences of every query word in every document of the shard
+    @Benchmark
+    public void countWordOccurrences(Blackhole blackhole) {
+        for (String queryWord : queryWords) {
+            blackhole.consume(index.countWordOccurrences(queryWord));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.websearch;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Parsing of the results a Coordinator sends as the string form of its result map
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertStringToMapBenchmark {
+    @Param({"10", "100", "1000"})
+    public int results;
+
+    private String response;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        Map<String, Double> map = new LinkedHashMap<>();
+        for (int i = 0; i < results; i++) {
+            map.put(String.format("doc%06d.txt", i), random.nextDouble());
+        }
+        response = map.toString();
+    }
+
+    @Benchmark
+    public Map<String, Double> convertStringToMap() {
+        return SearchService.convertStringToMap(response);
+    }
+}
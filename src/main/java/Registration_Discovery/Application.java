@@ -11,7 +11,8 @@ import java.util.Scanner;
 
 public class Application implements Watcher {
     private static final Logger logger = LoggerFactory.getLogger(Application.class);
-    private static final String address = "192.168.184.129:2181";
+    // ZooKeeper ensemble of the cluster, host:port[,host:port...]
+    private static final String address = System.getProperty("zookeeper.address", "192.168.184.129:2181");
     private static final int SESSION_TIMEOUT = 3000;
     //private static final int DEFAULT_PORT = 8080;
     private ZooKeeper zooKeeper;
@@ -37,7 +38,11 @@ public class Application implements Watcher {
     }
 
     public ZooKeeper connectToZookeeper() throws IOException {
-        this.zooKeeper = new ZooKeeper(address, SESSION_TIMEOUT, this);
+        return connectToZookeeper(address);
+    }
+
+    public ZooKeeper connectToZookeeper(String zookeeperAddress) throws IOException {
+        this.zooKeeper = new ZooKeeper(zookeeperAddress, SESSION_TIMEOUT, this);
         return zooKeeper;
     }
 
@@ -0,0 +1,552 @@
+package Registration_Discovery;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+// A query as a tree of boolean operators over its terms (words, phrases and NEAR/k pairs, see PhraseQuery,
+// and fuzzy words, which stand for any of their edit distances, see FuzzyQuery):
+//   distributed AND systems          documents containing both terms
+//   search OR retrieval              documents containing either term, also the meaning of terms without operator
+//   systems NOT distributed          documents containing systems and not distributed, same as AND NOT
+//   NOT draft                        documents without draft
+//   (search OR retrieval) AND "distributed systems"
+// Operators are upper case, AND and NOT bind closer than OR. The tree only decides which documents match:
+// scores stay the TF-IDF sum of the terms, except terms that only appear negated, which weigh nothing.
+// The Coordinator parses the query once and sends the tree to the Workers with its term table, leaves refer
+// to terms by their id in the table.
+final class BooleanQuery {
+    private static final Pattern NEAR = Pattern.compile("NEAR/\\d+");
+
+    private static final byte TERM = 0;
+    private static final byte AND = 1;
+    private static final byte OR = 2;
+    private static final byte NOT = 3;
+
+    private final String[] terms; // Distinct terms, in query order
+    private final Node root;
+
+    private BooleanQuery(String[] terms, Node root) {
+        this.terms = terms;
+        this.root = root;
+    }
+
+    // A node of the tree: a term, or an operator over its children
+    private static final class Node {
+        final byte operator;
+        final int termId;
+        final Node[] children;
+
+        Node(byte operator, int termId, Node[] children) {
+            this.operator = operator;
+            this.termId = termId;
+            this.children = children;
+        }
+    }
+
+    // Whether the query uses boolean operators or parentheses, other queries are a plain list of terms
+    static boolean hasOperators(String query) {
+        for (String token : tokenize(query)) {
+            if (isOperator(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The query tree of a query: parsed when it has operators, otherwise any of its terms
+    static BooleanQuery of(String query) {
+        return hasOperators(query) ? parse(query) : disjunction(Worker.splitQuery(query));
+    }
+
+    // A query matching the documents containing any of the terms
+    static BooleanQuery disjunction(String[] terms) {
+        String[] distinct = new LinkedHashSet<>(Arrays.asList(terms)).toArray(new String[0]);
+        Node[] children = new Node[distinct.length];
+        for (int termId = 0; termId < distinct.length; termId++) {
+            children[termId] = new Node(TERM, termId, null);
+        }
+        return new BooleanQuery(distinct, children.length == 0 ? null : children.length == 1 ? children[0] : new Node(OR, -1, children));
+    }
+
+    // Parse a query. Unbalanced parentheses are closed at the end, an operator without operands is ignored.
+    static BooleanQuery parse(String query) {
+        Parser parser = new Parser(tokenize(query));
+        Node root = parser.parseOr();
+        while (parser.position < parser.tokens.size()) { // A stray closing parenthesis
+            parser.position++;
+            Node rest = parser.parseOr();
+            root = root == null ? rest : rest == null ? root : new Node(OR, -1, new Node[]{root, rest});
+        }
+        return new BooleanQuery(parser.termIds.keySet().toArray(new String[0]), root);
+    }
+
+    // The terms of the query, each once, in the order of their ids
+    String[] getTerms() {
+        return terms;
+    }
+
+    // Whether the query matches every document containing any of its terms, like a query without operators
+    boolean isDisjunction() {
+        if (root == null || root.operator == TERM) {
+            return true;
+        }
+        if (root.operator != OR) {
+            return false;
+        }
+        for (Node child : root.children) {
+            if (child.operator != TERM) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the term adds to the score, false for terms that only appear under a NOT
+    boolean isScoring(int termId) {
+        return isScoring(root, termId, false);
+    }
+
+    private static boolean isScoring(Node node, int termId, boolean negated) {
+        if (node == null) {
+            return false;
+        }
+        if (node.operator == TERM) {
+            return node.termId == termId && !negated;
+        }
+        for (Node child : node.children) {
+            if (isScoring(child, termId, negated || node.operator == NOT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether a document matches, given which of the terms it contains
+    boolean matches(IntPredicate containsTerm) {
+        return root != null && matches(root, containsTerm);
+    }
+
+    private static boolean matches(Node node, IntPredicate containsTerm) {
+        switch (node.operator) {
+            case TERM:
+                return containsTerm.test(node.termId);
+            case NOT:
+                return !matches(node.children[0], containsTerm);
+            case AND:
+                for (Node child : node.children) {
+                    if (!matches(child, containsTerm)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                for (Node child : node.children) {
+                    if (matches(child, containsTerm)) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    // Write the term table, then the tree in prefix order: an operator byte, followed by the term id of
+    // a leaf or the number of children and the children of an operator
+    void write(DataOutputStream out) throws IOException {
+        out.writeShort(terms.length);
+        for (String term : terms) {
+            out.writeUTF(term);
+        }
+        out.writeBoolean(root != null);
+        if (root != null) {
+            write(out, root);
+        }
+    }
+
+    private static void write(DataOutputStream out, Node node) throws IOException {
+        out.writeByte(node.operator);
+        if (node.operator == TERM) {
+            out.writeShort(node.termId);
+        } else {
+            out.writeShort(node.children.length);
+            for (Node child : node.children) {
+                write(out, child);
+            }
+        }
+    }
+
+    static BooleanQuery read(DataInputStream in) throws IOException {
+        String[] terms = new String[in.readUnsignedShort()];
+        for (int termId = 0; termId < terms.length; termId++) {
+            terms[termId] = in.readUTF();
+        }
+        return new BooleanQuery(terms, in.readBoolean() ? read(in, terms.length) : null);
+    }
+
+    private static Node read(DataInputStream in, int termCount) throws IOException {
+        byte operator = in.readByte();
+        if (operator == TERM) {
+            int termId = in.readUnsignedShort();
+            if (termId >= termCount) {
+                throw new IOException("Invalid term id in query tree: " + termId);
+            }
+            return new Node(TERM, termId, null);
+        }
+        if (operator != AND && operator != OR && operator != NOT) {
+            throw new IOException("Invalid operator in query tree: " + operator);
+        }
+        Node[] children = new Node[in.readUnsignedShort()];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = read(in, termCount);
+        }
+        return new Node(operator, -1, children);
+    }
+
+    // Canonical form of the query, with every operator and grouping explicit
+    @Override
+    public String toString() {
+        return toString(UnaryOperator.identity());
+    }
+
+    // The canonical form with every term written by the given function
+    String toString(UnaryOperator<String> termText) {
+        StringBuilder text = new StringBuilder();
+        if (root != null) {
+            append(text, root, termText);
+        }
+        return text.toString();
+    }
+
+    private void append(StringBuilder text, Node node, UnaryOperator<String> termText) {
+        if (node.operator == TERM) {
+            text.append(termText.apply(terms[node.termId]));
+        } else if (node.operator == NOT) {
+            text.append("NOT ");
+            append(text, node.children[0], termText);
+        } else {
+            text.append('(');
+            for (int i = 0; i < node.children.length; i++) {
+                text.append(i > 0 ? (node.operator == AND ? " AND " : " OR ") : "");
+                append(text, node.children[i], termText);
+            }
+            text.append(')');
+        }
+    }
+
+    // Matching documents of the query in an index snapshot, in increasing id order, with the occurrences
+    // of every term in them (see DocumentCursor.count)
+    DocumentCursor cursor(InvertedIndex index) {
+        TermCursor[] termCursors = new TermCursor[terms.length];
+        DocumentCursor cursor = root != null ? cursor(index, root, termCursors) : new Disjunction(new DocumentCursor[0]);
+        cursor.termCursors = termCursors;
+        return cursor;
+    }
+
+    // Cursor of a node, the cursor of a term is kept in termCursors the first time the term is met
+    private DocumentCursor cursor(InvertedIndex index, Node node, TermCursor[] termCursors) {
+        if (node.operator == TERM) {
+            TermCursor termCursor = index.termCursor(terms[node.termId]);
+            if (termCursors[node.termId] == null) {
+                termCursors[node.termId] = termCursor;
+            }
+            return new DocumentCursor() {
+                @Override
+                int advance(int target) {
+                    return docId = termCursor.advance(target);
+                }
+            };
+        }
+        if (node.operator == NOT) {
+            return new Complement(cursor(index, node.children[0], termCursors), index.getDocumentCount());
+        }
+        List<DocumentCursor> children = new ArrayList<>(node.children.length);
+        List<DocumentCursor> excluded = new ArrayList<>();
+        for (Node child : node.children) {
+            if (node.operator == AND && child.operator == NOT) {
+                excluded.add(cursor(index, child.children[0], termCursors)); // Only looked up for the documents of the other children
+            } else {
+                children.add(cursor(index, child, termCursors));
+            }
+        }
+        if (node.operator == OR) {
+            return new Disjunction(children.toArray(new DocumentCursor[0]));
+        }
+        DocumentCursor required = children.isEmpty()
+                ? new Complement(new Disjunction(new DocumentCursor[0]), index.getDocumentCount())
+                : new Conjunction(children.toArray(new DocumentCursor[0]));
+        return excluded.isEmpty() ? required : new Exclusion(required, new Disjunction(excluded.toArray(new DocumentCursor[0])));
+    }
+
+    // Document ids matching a node of the tree, moved forward only
+    abstract static class DocumentCursor {
+        int docId = -1;
+        private TermCursor[] termCursors; // Set on the cursor of the whole query: a cursor of the tree for every term
+
+        // Move to the first matching document with an id of at least target, returns its id or TermCursor.NO_MORE_DOCS.
+        // Returns the current document when it is already at target or beyond.
+        abstract int advance(int target);
+
+        int nextDoc() {
+            return docId == TermCursor.NO_MORE_DOCS ? docId : advance(docId + 1);
+        }
+
+        // Occurrences of a term in the current document of the whole query, read from the cursor the tree walks
+        // for the term instead of decoding its postings again. Every cursor of the tree was last moved to a target
+        // no later than the current document, so one beyond it has no occurrence there, and one behind it is moved
+        // to it: the tree only moves past the current document afterwards.
+        int count(int termId) {
+            TermCursor termCursor = termCursors[termId];
+            return termCursor.advance(docId) == docId ? termCursor.count() : 0;
+        }
+    }
+
+    // Documents of all the children: each child in turn jumps to the document the previous one stopped on,
+    // so the rarest term drives the walk and the postings of the others are skipped block by block
+    private static final class Conjunction extends DocumentCursor {
+        private final DocumentCursor[] children;
+
+        Conjunction(DocumentCursor[] children) {
+            this.children = children;
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            int candidate = target;
+            int agreeing = 0;
+            for (int i = 0; agreeing < children.length; i = (i + 1) % children.length) {
+                int childDocId = children[i].advance(candidate);
+                if (childDocId == TermCursor.NO_MORE_DOCS) {
+                    return docId = TermCursor.NO_MORE_DOCS;
+                }
+                if (childDocId == candidate) {
+                    agreeing++;
+                } else {
+                    candidate = childDocId;
+                    agreeing = 1;
+                }
+            }
+            return docId = candidate;
+        }
+    }
+
+    // Documents of any of the children
+    private static final class Disjunction extends DocumentCursor {
+        private final DocumentCursor[] children;
+
+        Disjunction(DocumentCursor[] children) {
+            this.children = children;
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            int next = TermCursor.NO_MORE_DOCS;
+            for (DocumentCursor child : children) {
+                next = Math.min(next, child.advance(target));
+            }
+            return docId = next;
+        }
+    }
+
+    // Documents of the first cursor that the second one does not match
+    private static final class Exclusion extends DocumentCursor {
+        private final DocumentCursor required;
+        private final DocumentCursor excluded;
+
+        Exclusion(DocumentCursor required, DocumentCursor excluded) {
+            this.required = required;
+            this.excluded = excluded;
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            int candidate = required.advance(target);
+            while (candidate != TermCursor.NO_MORE_DOCS && excluded.advance(candidate) == candidate) {
+                candidate = required.advance(candidate + 1);
+            }
+            return docId = candidate;
+        }
+    }
+
+    // Every document of the index that the child does not match
+    private static final class Complement extends DocumentCursor {
+        private final DocumentCursor child;
+        private final int documentCount;
+
+        Complement(DocumentCursor child, int documentCount) {
+            this.child = child;
+            this.documentCount = documentCount;
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            int candidate = target;
+            while (candidate < documentCount && child.advance(candidate) == candidate) {
+                candidate++;
+            }
+            return docId = candidate < documentCount ? candidate : TermCursor.NO_MORE_DOCS;
+        }
+    }
+
+    // Split a query into parentheses, quoted phrases, NEAR/k pairs and single words
+    private static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                end = end < 0 ? query.length() : end;
+                tokens.add(PhraseQuery.split(query.substring(i, Math.min(end + 1, query.length())))[0]);
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end))
+                        && "()\"".indexOf(query.charAt(end)) < 0) {
+                    end++;
+                }
+                tokens.add(query.substring(i, end));
+                i = end;
+            }
+        }
+
+        // Same pairing of NEAR/k with the words around it as PhraseQuery.split
+        List<String> terms = new ArrayList<>(tokens.size());
+        for (int t = 0; t < tokens.size(); t++) {
+            String token = tokens.get(t);
+            if (NEAR.matcher(token).matches() && !terms.isEmpty() && t + 1 < tokens.size()
+                    && isWord(terms.get(terms.size() - 1)) && isWord(tokens.get(t + 1))) {
+                String left = terms.remove(terms.size() - 1);
+                terms.add(left + " " + token + " " + tokens.get(++t));
+            } else {
+                terms.add(token);
+            }
+        }
+        return terms;
+    }
+
+    private static boolean isOperator(String token) {
+        return token.equals("AND") || token.equals("OR") || token.equals("NOT") || token.equals("(") || token.equals(")");
+    }
+
+    private static boolean isWord(String token) {
+        return !isOperator(token) && !token.startsWith("\"") && !NEAR.matcher(token).matches() && !token.contains(" ");
+    }
+
+    // Recursive descent over the tokens:
+    //   or    := and { [OR] and }
+    //   and   := unary { AND unary | NOT unary }
+    //   unary := NOT unary | ( or ) | term
+    private static final class Parser {
+        final List<String> tokens;
+        final Map<String, Integer> termIds = new LinkedHashMap<>();
+        int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node parseOr() {
+            List<Node> children = new ArrayList<>();
+            while (position < tokens.size() && !tokens.get(position).equals(")")) {
+                if (tokens.get(position).equals("OR")) {
+                    position++;
+                    continue;
+                }
+                Node child = parseAnd();
+                if (child != null) {
+                    children.add(child);
+                }
+            }
+            return combine(OR, children);
+        }
+
+        Node parseAnd() {
+            List<Node> children = new ArrayList<>();
+            Node first = parseUnary();
+            if (first != null) {
+                children.add(first);
+            }
+            while (position < tokens.size() && (tokens.get(position).equals("AND") || tokens.get(position).equals("NOT"))) {
+                boolean negated = tokens.get(position).equals("NOT");
+                position++;
+                Node child = parseUnary();
+                if (child != null) {
+                    children.add(negated ? new Node(NOT, -1, new Node[]{child}) : child);
+                }
+            }
+            return combine(AND, children);
+        }
+
+        Node parseUnary() {
+            if (position >= tokens.size()) {
+                return null;
+            }
+            String token = tokens.get(position++);
+            switch (token) {
+                case "NOT":
+                    Node child = parseUnary();
+                    return child != null ? new Node(NOT, -1, new Node[]{child}) : null;
+                case "(":
+                    Node group = parseOr();
+                    if (position < tokens.size()) {
+                        position++; // The closing parenthesis
+                    }
+                    return group;
+                case "AND":
+                    return parseUnary(); // Without a left operand, ignored
+                case "OR":
+                case ")":
+                    position--; // Left to parseOr
+                    return null;
+                default:
+                    String[] fuzzyTerms = FuzzyQuery.expand(token);
+                    if (fuzzyTerms == null) {
+                        return term(token);
+                    }
+                    List<Node> distances = new ArrayList<>(fuzzyTerms.length); // Any of the distances of a fuzzy word
+                    for (String fuzzyTerm : fuzzyTerms) {
+                        distances.add(term(fuzzyTerm));
+                    }
+                    return combine(OR, distances);
+            }
+        }
+
+        private Node term(String term) {
+            int termId = termIds.computeIfAbsent(term, k -> termIds.size());
+            return new Node(TERM, termId, null);
+        }
+
+        private static Node combine(byte operator, List<Node> children) {
+            if (children.isEmpty()) {
+                return null;
+            }
+            return children.size() == 1 ? children.get(0) : new Node(operator, -1, children.toArray(new Node[0]));
+        }
+    }
+}
@@ -1,206 +1,623 @@
 package Registration_Discovery;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.*;
 import java.net.Socket;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Coordinator {
+    private static final Logger logger = LoggerFactory.getLogger(Coordinator.class);
+    // "binary" uses the WireProtocol frames, "java" falls back to Java object serialization
+    private static final String PROTOCOL = System.getProperty("coordinator.protocol", "binary");
+    // Number of documents each worker returns with the binary protocol, 0 to receive every document
+    private static final int TOP_K = Integer.getInteger("coordinator.topK", 100);
+    // Time a query waits for the workers before it is answered with the responses received so far
+    private static final long QUERY_TIMEOUT_MILLIS = Long.getLong("coordinator.queryTimeoutMillis", 30000);
+    // Time a single worker request may take, a worker missing it is left out of the (partial) results
+    private static final long WORKER_TIMEOUT_MILLIS = Long.getLong("coordinator.workerTimeoutMillis", 10000);
+    // Hedging: a request still waiting after the given percentile of the recent latencies is sent again,
+    // the first response wins. Needs enough samples before it kicks in.
+    private static final boolean HEDGE = Boolean.getBoolean("coordinator.hedge");
+    private static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("coordinator.hedgePercentile", "95"));
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    // Number of query rankings kept in the result cache (0 disables it) and how long they stay valid
+    private static final int CACHE_SIZE = Integer.getInteger("coordinator.cacheSize", 1000);
+    private static final long CACHE_TTL_MILLIS = Long.getLong("coordinator.cacheTtlMillis", 60000);
+    // Port the Web Server listens on for the results, on the same host as the Coordinator
+    private static final int WEB_SERVER_PORT = Integer.getInteger("search.resultsPort", 8082);
+    // Stage latencies and counts, exported through JMX (see Metrics)
+    private static final LatencyHistogram QUERY_LATENCY = Metrics.histogram("coordinator.query");
+    private static final LatencyHistogram STATS_LATENCY = Metrics.histogram("coordinator.statsPhase");
+    private static final LatencyHistogram WORKER_LATENCY = Metrics.histogram("coordinator.workerRoundTrip");
+    private static final LatencyHistogram DECODE_LATENCY = Metrics.histogram("coordinator.decode");
+    private static final LatencyHistogram SCORE_LATENCY = Metrics.histogram("coordinator.score");
+    private static final LatencyHistogram MERGE_LATENCY = Metrics.histogram("coordinator.merge");
+    private static final LatencyHistogram SEND_RESULTS_LATENCY = Metrics.histogram("coordinator.sendResults");
+    private static final Counter QUERIES = Metrics.counter("coordinator.queries");
+    private static final Counter CACHE_HITS = Metrics.counter("coordinator.cacheHits");
+    private static final Counter PARTIAL_RESULTS = Metrics.counter("coordinator.partialResults");
+    private static final Counter WORKER_ERRORS = Metrics.counter("coordinator.workerErrors");
+    private static final Counter HEDGED_REQUESTS = Metrics.counter("coordinator.hedgedRequests");
     private ServiceRegistry serviceRegistry;
-    private Map<String, Double> documentScores = new HashMap<>();
+    private final WorkerConnectionPool connectionPool = new WorkerConnectionPool();
+    private final ExecutorService serializationExecutor = Executors.newCachedThreadPool(); // Blocking I/O of the fallback protocol
+    private final GlobalStatistics globalStatistics = new GlobalStatistics(); // Shard statistics cached per index version
+    private final QueryResultCache resultCache = new QueryResultCache(CACHE_SIZE, CACHE_TTL_MILLIS);
+    private final ReplicaSelector replicaSelector = new ReplicaSelector(connectionPool); // One replica per shard and query
+    private final LatencyTracker latencyTracker = new LatencyTracker(1024); // Latencies of the recent worker requests
+    private final ScheduledExecutorService hedgeScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "coordinator-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Map<String, Double> lastResults = Collections.emptyMap(); // Ranked results of the last completed query
 
     // Constructor to initialize the Coordinator with a ServiceRegistry
     public Coordinator(ServiceRegistry serviceRegistry) {
         this.serviceRegistry = serviceRegistry;
+        serviceRegistry.addMembershipCallback(connectionPool); // Drop the connections of workers that leave
+        serviceRegistry.addMembershipCallback(globalStatistics); // And their cached statistics
+        serviceRegistry.addMembershipCallback(resultCache); // Rankings change with the set of workers
+        serviceRegistry.addMembershipCallback(replicaSelector);
+    }
+
+    // Start processing the query, the ranked results are sent to the web server and returned.
+    // Safe to call from many threads at once: each query runs in its own QueryContext.
+    public Map<String, Double> start(String query) {
+        return start(query, (results, partial) -> sendResultsToWebServer(results));
+    }
+
+    // Start processing the query and hand the ranked results to the given sink
+    public Map<String, Double> start(String query, QueryResultSink resultSink) {
+        return start(query, resultSink, null);
     }
 
-    // Start processing the query
-    public void start(String query) {
-        // Send queries to all workers using threads
-        sendAndReceiveFromWorkers(query);
+    // Start processing the query, the progress sink (may be null) receives the merged ranking of the
+    // workers that answered so far each time a worker answers, before the final ranking goes to the result sink
+    public Map<String, Double> start(String query, QueryResultSink resultSink, QueryResultSink progressSink) {
+        long startNanos = System.nanoTime();
+        QUERIES.increment();
+        String normalizedQuery = QueryResultCache.normalize(query);
+        Map<String, Double> cachedResults = resultCache.get(normalizedQuery);
+        if (cachedResults != null) {
+            logger.debug("Query served from cache: {}", normalizedQuery);
+            CACHE_HITS.increment();
+            lastResults = cachedResults;
+            resultSink.accept(cachedResults, false);
+            QUERY_LATENCY.recordSince(startNanos);
+            return cachedResults;
+        }
+
+        long cacheGeneration = resultCache.getGeneration();
+        QueryContext context = new QueryContext(query, QUERY_TIMEOUT_MILLIS, resultSink, progressSink);
+        // Send queries to all workers in parallel
+        sendAndReceiveFromWorkers(context);
+        if (!context.isPartial()) {
+            resultCache.put(normalizedQuery, context.getDocumentScores(), cacheGeneration);
+        } else {
+            PARTIAL_RESULTS.increment();
+        }
+        QUERY_LATENCY.recordSince(startNanos);
+        return context.getDocumentScores();
+    }
+
+    // Hit and miss counts of the query result cache
+    public String getCacheStatistics() {
+        return resultCache.toString();
     }
 
     // Method to send and receive data from worker nodes
-    private void sendAndReceiveFromWorkers(String query) {
-        List<String> workerAddresses = serviceRegistry.getWorkerAddresses(); // Get worker addresses from registry
-        List<Thread> threads = new ArrayList<>();
-        CountDownLatch latch = new CountDownLatch(workerAddresses.size()); // Wait for all threads to complete
+    private void sendAndReceiveFromWorkers(QueryContext context) {
+        String query = context.getQuery();
+        List<String> workerAddresses = chooseReplicas(); // One worker per shard, each shard is counted once
+        boolean twoPhase = !"java".equals(PROTOCOL) && TOP_K > 0;
+        int limit = TOP_K > 0 ? TOP_K : Integer.MAX_VALUE;
+
+        // Stats phase: global document count and document frequencies, so every worker ranks with the same IDF values
+        BooleanQuery booleanQuery = BooleanQuery.of(query); // Parsed once, the workers receive the tree
+        QueryTerms queryTerms = new QueryTerms(Arrays.asList(booleanQuery.getTerms())); // Query words interned to term ids once per query
+        List<String> queryWords = queryTerms.toList();
+        int totalDocuments = -1;
+        Map<String, Integer> documentFrequency = Collections.emptyMap();
+        if (twoPhase) {
+            long statsStartNanos = System.nanoTime();
+            gatherStatistics(workerAddresses, queryWords, context);
+            totalDocuments = globalStatistics.getTotalDocuments(workerAddresses);
+            documentFrequency = globalStatistics.getDocumentFrequency(workerAddresses, queryWords);
+            STATS_LATENCY.recordSince(statsStartNanos);
+            logger.debug("Global statistics: {} documents, document frequency {}", totalDocuments, documentFrequency);
+        }
 
+        // Scoring phase: every worker returns its documents ranked by score
+        List<CompletableFuture<Void>> responses = new ArrayList<>(workerAddresses.size());
         for (String workerAddress : workerAddresses) {
-            Thread workerThread = new Thread(() -> {
+            logger.debug("Sending query \"{}\" to {}", query, workerAddress);
+            responses.add(startSearchOnWorker(workerAddress, context, booleanQuery, totalDocuments, documentFrequency) // Perform search on the worker
+                    .thenAccept(results -> {
+                        context.addShardResult(workerAddress, results);
+                        if (twoPhase && context.wantsProgress()) {
+                            // Documents are already scored with the global statistics, rankings of the workers
+                            // that answered can be merged right away
+                            context.publishProgress(() -> mergeRankedResults(context.getShardResults().values(), limit));
+                        }
+                    })
+                    .exceptionally(e -> {
+                        System.err.println("Error communicating with worker: " + workerAddress + " - " + e.getMessage());
+                        WORKER_ERRORS.increment();
+                        return null;
+                    }));
+        }
+
+        // Wait until every worker answered or failed, or the deadline passed
+        awaitResponses(responses, context);
+        Map<String, ShardResult> shardResults = context.getShardResults();
+        if (shardResults.size() < workerAddresses.size()) {
+            context.markPartial(); // Not cached, a missing worker may answer the next time
+        }
+
+        if (twoPhase) {
+            // Statistics computed on an older index version are replaced by the ones of this response
+            boolean versionChanged = false;
+            for (Map.Entry<String, ShardResult> entry : shardResults.entrySet()) {
+                versionChanged |= globalStatistics.update(entry.getKey(), entry.getValue());
+            }
+            if (versionChanged) {
+                resultCache.invalidateAll("index version changed");
+            }
+        } else {
+            // Workers returned unranked documents: score them with the IDF values of all shards together
+            long scoreStartNanos = System.nanoTime();
+            scoreShardResults(shardResults.values(), queryTerms, booleanQuery);
+            SCORE_LATENCY.recordSince(scoreStartNanos);
+        }
+
+        // Merge the ranked lists once and emit the results of the query
+        long mergeStartNanos = System.nanoTime();
+        Map<String, Double> documentScores = mergeRankedResults(shardResults.values(), limit);
+        MERGE_LATENCY.recordSince(mergeStartNanos);
+        updateFinalResults(context, documentScores);
+    }
+
+    // Pick the least loaded replica of every shard known to the registry
+    private List<String> chooseReplicas() {
+        Map<String, List<String>> replicasByShard = serviceRegistry.getReplicasByShard();
+        List<String> workerAddresses = new ArrayList<>(replicasByShard.size());
+        for (List<String> replicas : replicasByShard.values()) {
+            String replica = replicaSelector.choose(replicas);
+            if (replica != null) {
+                workerAddresses.add(replica);
+            }
+        }
+        return workerAddresses;
+    }
+
+    // Block until all the responses completed or the deadline of the query passed
+    private void awaitResponses(List<CompletableFuture<Void>> responses, QueryContext context) {
+        try {
+            CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).get(context.remainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("Query deadline reached, answering \"" + context.getQuery() + "\" with the responses received so far");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Failures are already logged by every response
+        }
+    }
+
+    // Ask every worker for the statistics of the query words that are not cached yet
+    private void gatherStatistics(List<String> workerAddresses, List<String> queryWords, QueryContext context) {
+        List<CompletableFuture<Void>> responses = new ArrayList<>(workerAddresses.size());
+        for (String workerAddress : workerAddresses) {
+            List<String> missingWords = globalStatistics.getMissingWords(workerAddress, queryWords);
+            if (missingWords.isEmpty()) {
+                continue;
+            }
+            try {
+                responses.add(sendToWorker(workerAddress, WireProtocol.STATS_REQUEST, WireProtocol.encodeStatsRequest(missingWords), context)
+                        .thenAccept(response -> {
+                            try {
+                                if (response.type == WireProtocol.ERROR) {
+                                    throw new IOException("Worker error: " + WireProtocol.decodeError(response.payload));
+                                }
+                                if (globalStatistics.update(workerAddress, WireProtocol.decodeStatsResponse(response.payload))) {
+                                    resultCache.invalidateAll("index version of " + workerAddress + " changed");
+                                }
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        })
+                        .exceptionally(e -> {
+                            System.err.println("Error getting statistics from worker: " + workerAddress + " - " + e.getMessage());
+                            return null;
+                        }));
+            } catch (IOException e) {
+                System.err.println("Error encoding statistics request: " + e.getMessage());
+            }
+        }
+        awaitResponses(responses, context);
+    }
+
+    // Send a request to a worker, failing once the worker timeout or the query deadline passed.
+    // With hedging on, a request still waiting after the latency percentile is sent once more
+    // and the first response is used.
+    private CompletableFuture<WireProtocol.Frame> sendToWorker(String workerAddress, byte type, byte[] payload, QueryContext context) {
+        long timeoutMillis = Math.min(WORKER_TIMEOUT_MILLIS, context.remainingMillis());
+        CompletableFuture<WireProtocol.Frame> response = new CompletableFuture<>();
+        AtomicInteger pendingAttempts = new AtomicInteger(1);
+        sendAttempt(workerAddress, type, payload, timeoutMillis, response, pendingAttempts);
+
+        long hedgeDelayMillis = hedgeDelayMillis();
+        if (hedgeDelayMillis >= 0 && hedgeDelayMillis < timeoutMillis) {
+            hedgeScheduler.schedule(() -> {
+                if (!response.isDone()) {
+                    String target = hedgeTarget(workerAddress);
+                    logger.debug("Hedging request to {} on {} after {} ms", workerAddress, target, hedgeDelayMillis);
+                    HEDGED_REQUESTS.increment();
+                    pendingAttempts.incrementAndGet();
+                    sendAttempt(target, type, payload, timeoutMillis - hedgeDelayMillis, response, pendingAttempts);
+                }
+            }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+    // One attempt of a request, completes the response on success or once every attempt failed
+    private void sendAttempt(String address, byte type, byte[] payload, long timeoutMillis,
+                             CompletableFuture<WireProtocol.Frame> response, AtomicInteger pendingAttempts) {
+        long startNanos = System.nanoTime();
+        connectionPool.send(address, type, payload)
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS) // Also frees the request slot of the connection
+                .whenComplete((frame, e) -> {
+                    if (e == null) {
+                        long latencyNanos = System.nanoTime() - startNanos;
+                        WORKER_LATENCY.recordNanos(latencyNanos);
+                        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+                        latencyTracker.record(latencyMillis);
+                        replicaSelector.recordLatency(address, latencyMillis);
+                        response.complete(frame);
+                    } else if (pendingAttempts.decrementAndGet() == 0) {
+                        response.completeExceptionally(e instanceof TimeoutException
+                                ? new TimeoutException("No response from " + address + " within " + timeoutMillis + " ms")
+                                : e);
+                    }
+                });
+    }
+
+    // Delay after which a request is hedged, -1 when hedging is off or there are not enough latency samples yet
+    private long hedgeDelayMillis() {
+        if (!HEDGE || latencyTracker.getSampleCount() < HEDGE_MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(1, latencyTracker.percentile(HEDGE_PERCENTILE));
+    }
+
+    // Worker receiving the hedged copy of a request: the least loaded other replica of the same shard,
+    // or the same worker on another pooled connection when the shard has a single replica
+    private String hedgeTarget(String workerAddress) {
+        for (List<String> replicas : serviceRegistry.getReplicasByShard().values()) {
+            if (replicas.contains(workerAddress)) {
+                return replicaSelector.choose(replicas, workerAddress);
+            }
+        }
+        return workerAddress;
+    }
+
+    // Method to start search on a specific worker
+    private CompletableFuture<ShardResult> startSearchOnWorker(String workerAddress, QueryContext context, BooleanQuery booleanQuery,
+                                                              int totalDocuments, Map<String, Integer> documentFrequency) {
+        String query = context.getQuery();
+        if ("java".equals(PROTOCOL)) {
+            int timeoutMillis = (int) Math.max(1, Math.min(WORKER_TIMEOUT_MILLIS, context.remainingMillis()));
+            return CompletableFuture.supplyAsync(() -> {
                 try {
-                    System.out.println(workerAddress);
-                    startSearchOnWorker(workerAddress, query); // Perform search on the worker
+                    return toShardResult(searchSerialized(workerAddress, query, timeoutMillis));
                 } catch (IOException | ClassNotFoundException e) {
-                    System.err.println("Error communicating with worker: " + workerAddress + " - " + e.getMessage());
-                } finally {
-                    latch.countDown(); // Decrement the latch counter when the thread finishes
+                    throw new CompletionException(e);
                 }
-            });
-            threads.add(workerThread);
-            workerThread.start();
+            }, serializationExecutor);
         }
 
         try {
-            latch.await(); // Wait until all threads complete
-        } catch (InterruptedException e) {
-            System.err.println("Thread interrupted: " + e.getMessage());
+            // Send the query on a pooled connection, the response is matched by its request id
+            byte type = TOP_K > 0 ? WireProtocol.TOP_K_REQUEST : WireProtocol.SEARCH_REQUEST;
+            byte[] payload = TOP_K > 0 ? WireProtocol.encodeTopKRequest(booleanQuery, TOP_K, totalDocuments, documentFrequency)
+                    : WireProtocol.encodeSearchRequest(booleanQuery);
+            return sendToWorker(workerAddress, type, payload, context)
+                    .thenApply(response -> {
+                        try {
+                            if (response.type == WireProtocol.ERROR) {
+                                throw new IOException("Worker error: " + WireProtocol.decodeError(response.payload));
+                            }
+                            long decodeStartNanos = System.nanoTime();
+                            ShardResult result = response.type == WireProtocol.TOP_K_RESPONSE
+                                    ? WireProtocol.decodeTopKResponse(response.payload)
+                                    : toShardResult(WireProtocol.decodeSearchResponse(response.payload));
+                            DECODE_LATENCY.recordSince(decodeStartNanos);
+                            return result;
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
 
-    // Method to start search on a specific worker
-    private void startSearchOnWorker(String workerAddress, String query) throws IOException, ClassNotFoundException {
+    // Wrap a result listing every document of the worker, the shard statistics are computed from it
+    private ShardResult toShardResult(List<DocumentTermsInfo> results) {
+        return new ShardResult(0, 0, results.size(), calculateDocumentFrequency(results), results);
+    }
+
+    // Send the query and receive the results using Java object serialization on a new connection
+    @SuppressWarnings("unchecked")
+    private List<DocumentTermsInfo> searchSerialized(String workerAddress, String query, int timeoutMillis) throws IOException, ClassNotFoundException {
         String[] addressParts = workerAddress.split(":"); // Split address into IP and port
         String ipAddress = addressParts[0];
         int port = Integer.parseInt(addressParts[1]);
 
-        System.out.println("Connecting to worker at: " + ipAddress + ":" + port);
+        logger.debug("Connecting to worker at: {}:{}", ipAddress, port);
 
-        try (Socket socket = new Socket(ipAddress, port)) {
+        long startNanos = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ipAddress, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis); // A hung worker must not block the query forever
             // Send the query to the worker
             ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
             outputStream.writeObject(query);
+            outputStream.flush();
 
             // Receive results from the worker
             ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
             List<DocumentTermsInfo> results = (List<DocumentTermsInfo>) inputStream.readObject();
-            // Process the results from the worker
-            synchronized (documentScores) {
-                processWorkerResults(workerAddress, results);
+            WORKER_LATENCY.recordSince(startNanos);
+            return results;
+        }
+    }
+
+    // Score the documents of every shard with the document count and document frequencies of all the shards,
+    // then rank each shard by score
+    static void scoreShardResults(Collection<ShardResult> shardResults, QueryTerms queryTerms) {
+        scoreShardResults(shardResults, queryTerms, BooleanQuery.disjunction(queryTerms.toArray()));
+    }
+
+    // Same, for a query with boolean operators: the documents it does not match are dropped first,
+    // and the terms that only appear negated weigh nothing
+    static void scoreShardResults(Collection<ShardResult> shardResults, QueryTerms queryTerms, BooleanQuery booleanQuery) {
+        int totalDocuments = 0;
+        int[] documentFrequency = new int[queryTerms.size()]; // Term id -> documents containing it
+        for (ShardResult shardResult : shardResults) {
+            totalDocuments += shardResult.getDocumentCount();
+            for (Map.Entry<String, Integer> entry : shardResult.getDocumentFrequency().entrySet()) {
+                int termId = queryTerms.idOf(entry.getKey());
+                if (termId >= 0) {
+                    documentFrequency[termId] += entry.getValue();
+                }
+            }
+        }
+
+        // Calculate the IDF (Inverse Document Frequency) values
+        double[] idfValues = calculateIDF(queryTerms, documentFrequency, totalDocuments);
+        for (int termId = 0; termId < idfValues.length; termId++) {
+            if (!booleanQuery.isScoring(termId)) {
+                idfValues[termId] = 0;
             }
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+        }
+
+        for (ShardResult shardResult : shardResults) {
+            if (!booleanQuery.isDisjunction()) {
+                removeNonMatching(shardResult.getDocuments(), queryTerms, booleanQuery);
+            }
+            // Compute scores for each document
+            calculateDocumentScores(shardResult.getDocuments(), queryTerms, idfValues);
+            shardResult.getDocuments().sort(Comparator.comparingDouble(DocumentTermsInfo::getScore).reversed());
         }
     }
 
-    // Process the results received from a worker
-    private void processWorkerResults(String workerAddress, List<DocumentTermsInfo> results) {
+    // Remove the documents that do not match the boolean operators of the query, given the frequencies of its terms
+    private static void removeNonMatching(List<DocumentTermsInfo> results, QueryTerms queryTerms, BooleanQuery booleanQuery) {
+        String[] terms = null;
+        int[] positions = null; // Term id in the query -> position in the terms of the result, mapped once per terms array
+        Iterator<DocumentTermsInfo> iterator = results.iterator();
+        while (iterator.hasNext()) {
+            DocumentTermsInfo docInfo = iterator.next();
+            if (docInfo.getTerms() != terms) {
+                terms = docInfo.getTerms();
+                positions = new int[queryTerms.size()];
+                Arrays.fill(positions, -1);
+                int[] termIds = queryTerms.idsOf(terms);
+                for (int i = 0; i < termIds.length; i++) {
+                    if (termIds[i] >= 0) {
+                        positions[termIds[i]] = i;
+                    }
+                }
+            }
+            double[] termFrequencies = docInfo.getTermFrequencies();
+            int[] termPositions = positions;
+            if (!booleanQuery.matches(termId -> termPositions[termId] >= 0 && termFrequencies[termPositions[termId]] > 0)) {
+                iterator.remove();
+            }
+        }
+    }
 
-        // Calculate the number of documents containing each word
-        Map<String, Integer> documentFrequency = calculateDocumentFrequency(results);
+    // Merge the per-worker lists, each sorted by descending score, into the best documents overall.
+    // A heap holds the head of every list so each document is looked at once.
+    static Map<String, Double> mergeRankedResults(Collection<ShardResult> shardResults, int limit) {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>();
+        for (ShardResult shardResult : shardResults) {
+            if (!shardResult.getDocuments().isEmpty()) {
+                heads.add(new Cursor(shardResult.getDocuments()));
+            }
+        }
 
-        int totalDocuments = results.size();
+        Map<String, Double> merged = new LinkedHashMap<>();
+        while (!heads.isEmpty() && merged.size() < limit) {
+            Cursor cursor = heads.poll();
+            DocumentTermsInfo docInfo = cursor.current();
+            merged.putIfAbsent(docInfo.getDocumentName(), docInfo.getScore()); // Same document on two workers: keep the best score
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+        return merged;
+    }
 
-        // Calculate the IDF (Inverse Document Frequency) values
-        Map<String, Double> idfValues = calculateIDF(documentFrequency, totalDocuments);
+    // Position in the ranked list of one worker, ordered by the score of the current document
+    private static class Cursor implements Comparable<Cursor> {
+        private final List<DocumentTermsInfo> documents;
+        private int position;
 
-        // Compute scores for each document
-        calculateDocumentScores(results, idfValues);
+        Cursor(List<DocumentTermsInfo> documents) {
+            this.documents = documents;
+        }
+
+        DocumentTermsInfo current() {
+            return documents.get(position);
+        }
 
-        // Update and sort the final results
-        updateFinalResults();
+        boolean advance() {
+            return ++position < documents.size();
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Double.compare(other.current().getScore(), current().getScore());
+        }
     }
 
     // Calculate the number of documents containing each word
-    private Map<String, Integer> calculateDocumentFrequency(List<DocumentTermsInfo> results) {
+    static Map<String, Integer> calculateDocumentFrequency(List<DocumentTermsInfo> results) {
         Map<String, Integer> documentFrequency = new HashMap<>();
 
+        // Count per term id while consecutive documents share their terms array, then add the counts to the words
+        String[] terms = null;
+        int[] counts = null;
         for (DocumentTermsInfo docInfo : results) {
-            for (Map.Entry<String, Double> entry : docInfo.getTermFrequency().entrySet()) {
-                String word = entry.getKey();
-                double tf = entry.getValue();
-
-                if (tf > 0) { // Check if the term frequency is greater than zero
-                    documentFrequency.merge(word, 1, Integer::sum); // Increment the count for each word
+            if (docInfo.getTerms() != terms) {
+                addDocumentFrequency(documentFrequency, terms, counts);
+                terms = docInfo.getTerms();
+                counts = new int[terms.length];
+            }
+            double[] termFrequencies = docInfo.getTermFrequencies();
+            for (int termId = 0; termId < termFrequencies.length; termId++) {
+                if (termFrequencies[termId] > 0) { // Check if the term frequency is greater than zero
+                    counts[termId]++;
                 }
             }
         }
+        addDocumentFrequency(documentFrequency, terms, counts);
         return documentFrequency;
     }
 
+    private static void addDocumentFrequency(Map<String, Integer> documentFrequency, String[] terms, int[] counts) {
+        if (terms == null) {
+            return;
+        }
+        for (int termId = 0; termId < terms.length; termId++) {
+            if (counts[termId] > 0) {
+                documentFrequency.merge(terms[termId], counts[termId], Integer::sum);
+            }
+        }
+    }
 
-    // Calculate IDF values for each word
-    private Map<String, Double> calculateIDF(Map<String, Integer> documentFrequency, int totalDocuments) {
-        Map<String, Double> idfValues = new HashMap<>();
-
-        for (Map.Entry<String, Integer> entry : documentFrequency.entrySet()) {
-            String word = entry.getKey();
-            int docCount = entry.getValue();
 
-            double idf;
-            if (docCount == 0) {
-                // Handle the case where the document count is zero
-                idf = 0.0; // Assign zero or an appropriate value
-            } else {
-                // Calculate IDF using the modified formula
-                idf = Math.log((double) docCount / totalDocuments);
-            }
+    // Calculate IDF values for each word, indexed by term id
+    private static double[] calculateIDF(QueryTerms queryTerms, int[] documentFrequency, int totalDocuments) {
+        double[] idfValues = new double[queryTerms.size()];
 
-            idfValues.put(word, idf);
+        for (int termId = 0; termId < idfValues.length; termId++) {
+            // Same formula as the Workers use to rank their top-K documents, fuzzy terms weighted down by distance
+            idfValues[termId] = Scoring.inverseDocumentFrequency(documentFrequency[termId], totalDocuments)
+                    * Scoring.termWeight(queryTerms.get(termId));
         }
 
-        System.out.println("Calculated IDF values: " + idfValues);
+        if (logger.isDebugEnabled()) {
+            StringBuilder idfLog = new StringBuilder("{");
+            for (int termId = 0; termId < idfValues.length; termId++) {
+                idfLog.append(termId > 0 ? ", " : "").append(queryTerms.get(termId)).append('=').append(idfValues[termId]);
+            }
+            logger.debug("Calculated IDF values: {}", idfLog.append('}'));
+        }
         return idfValues;
     }
 
 
     // Calculate document scores using TF-IDF
-    private void calculateDocumentScores(List<DocumentTermsInfo> results, Map<String, Double> idfValues) {
+    private static void calculateDocumentScores(List<DocumentTermsInfo> results, QueryTerms queryTerms, double[] idfValues) {
+        String[] terms = null;
+        int[] termIds = null; // Term id in the result -> term id in the query, mapped once per terms array
         for (DocumentTermsInfo docInfo : results) {
-            String documentName = docInfo.getDocumentName();
-            Map<String, Double> termFrequency = docInfo.getTermFrequency();
-            double score;
-
-            for (Map.Entry<String, Double> entry : termFrequency.entrySet()) {
-                String word = entry.getKey();
-                double tf = entry.getValue();
-                double idf = idfValues.getOrDefault(word, 0.0);
-                    score = tf * idf; // Compute TF-IDF score
-
-
+            if (docInfo.getTerms() != terms) {
+                terms = docInfo.getTerms();
+                termIds = queryTerms.idsOf(terms);
+            }
+            double[] termFrequencies = docInfo.getTermFrequencies();
+            double score = 0;
 
-                documentScores.merge(documentName, score, Double::sum); // Aggregate scores per document
+            for (int i = 0; i < termFrequencies.length; i++) {
+                if (termIds[i] >= 0 && termFrequencies[i] > 0) { // NaN and zero frequencies add nothing
+                    score += termFrequencies[i] * idfValues[termIds[i]]; // Compute TF-IDF score, aggregated per document
+                }
             }
+            docInfo.setScore(score);
         }
-
-        System.out.println("Calculated document scores: " + documentScores);
     }
 
 
-    // Sort and return the final document scores in descending order
-    private List<Map.Entry<String, Double>> sortDocumentsByScore() {
-        List<Map.Entry<String, Double>> sortedDocuments = new ArrayList<>(documentScores.entrySet());
-        sortedDocuments.sort((a, b) -> Double.compare(b.getValue(), a.getValue())); // Sort in descending order of scores
-        return sortedDocuments;
-    }
-
     // Updated method to display the sorted documents
-    private void updateFinalResults() {
-        List<Map.Entry<String, Double>> sortedDocuments = sortDocumentsByScore();
+    private void updateFinalResults(QueryContext context, Map<String, Double> sortedDocuments) {
 
         // Display sorted documents
-        System.out.println("Sorted Documents:");
-        for (Map.Entry<String, Double> entry : sortedDocuments) {
-            System.out.println("Document: " + entry.getKey() + ", Score: " + entry.getValue());
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sorted Documents:");
+            for (Map.Entry<String, Double> entry : sortedDocuments.entrySet()) {
+                logger.trace("Document: {}, Score: {}", entry.getKey(), entry.getValue());
+            }
         }
 
-        // Optionally, send the sorted results to a web server or other components
-        sendResultsToWebServer(convertListToMap(sortedDocuments));
-    }
-
-    // Convert a list of entries to a map for sending results
-    private Map<String, Double> convertListToMap(List<Map.Entry<String, Double>> sortedDocuments) {
-        Map<String, Double> sortedMap = new LinkedHashMap<>();
-        for (Map.Entry<String, Double> entry : sortedDocuments) {
-            sortedMap.put(entry.getKey(), entry.getValue());
-        }
-        return sortedMap;
+        // Send the sorted results to the web server or other components
+        lastResults = sortedDocuments;
+        context.complete(sortedDocuments);
     }
 
     public void sendResultsToWebServer(Map<String, Double> results) {
-        try (Socket socket = new Socket("127.0.0.1", 8082)) { // Web Server IP and port
+        long startNanos = System.nanoTime();
+        try (Socket socket = new Socket("127.0.0.1", WEB_SERVER_PORT)) { // Web Server IP and port
             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
             String resultsString = results.toString();
-            System.out.println("Sending results to Web Server: " + resultsString);
+            logger.trace("Sending results to Web Server: {}", resultsString);
             out.writeObject(resultsString);
             out.flush();
-            System.out.println("Results sent to Web Server.");
+            SEND_RESULTS_LATENCY.recordSince(startNanos);
+        } catch (IOException e) {
+            System.err.println("Error sending results to Web Server: " + e.getMessage());
+        }
+    }
+
+    // Send the results of a query with the request id the Web Server tagged it with,
+    // complete is false for the intermediate rankings of a streamed query,
+    // partial is true when some workers are missing from the ranking
+    public void sendResultsToWebServer(long requestId, Map<String, Double> results, boolean complete, boolean partial) {
+        long startNanos = System.nanoTime();
+        try (Socket socket = new Socket("127.0.0.1", WEB_SERVER_PORT)) { // Web Server IP and port
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            logger.debug("Sending {} of request {} to Web Server ({} documents)", complete ? "results" : "partial results", requestId, results.size());
+            out.writeObject(requestId);
+            out.writeObject(new LinkedHashMap<>(results)); // Keeps the ranking order
+            out.writeObject(complete);
+            out.writeObject(partial);
+            out.flush();
+            SEND_RESULTS_LATENCY.recordSince(startNanos);
         } catch (IOException e) {
             System.err.println("Error sending results to Web Server: " + e.getMessage());
         }
     }
 
     public Map<String, Double> getResults() {
-        return new HashMap<>(documentScores); // Return a copy of the document scores
+        return new LinkedHashMap<>(lastResults); // Return a copy of the document scores of the last query
     }
 }
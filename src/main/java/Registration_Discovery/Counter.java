@@ -0,0 +1,22 @@
+package Registration_Discovery;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Event counter for the hot paths, exported through JMX by Metrics
+public class Counter implements CounterMBean {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(getCount());
+    }
+}
@@ -0,0 +1,6 @@
+package Registration_Discovery;
+
+// JMX view of a Counter
+public interface CounterMBean {
+    long getCount();
+}
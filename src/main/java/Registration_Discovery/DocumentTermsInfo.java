@@ -1,38 +1,60 @@
 package Registration_Discovery;
 
-import java.util.HashMap;
-import java.util.Map;
-
+// Frequencies of the query words in one document.
+// The words are interned once per query in a terms array shared by all the documents of a result,
+// and the frequencies are a primitive array indexed by term id, NaN for a term absent from the result.
 class DocumentTermsInfo implements java.io.Serializable {
     private String documentName;
-    private Map<String, Double> termFrequency;
+    private String[] terms; // Shared by all the documents of a result
+    private double[] termFrequencies; // Term id -> frequency
+    private double score; // TF-IDF score, only set by Workers that rank their results
 
-    public DocumentTermsInfo(String documentName) {
+    public DocumentTermsInfo(String documentName, String[] terms, double[] termFrequencies) {
         this.documentName = documentName;
-        this.termFrequency = new HashMap<>();
+        this.terms = terms;
+        this.termFrequencies = termFrequencies;
     }
 
     public String getDocumentName() {
         return documentName;
     }
 
-    public Map<String, Double> getTermFrequency() {
-        return termFrequency;
+    public String[] getTerms() {
+        return terms;
+    }
+
+    public double[] getTermFrequencies() {
+        return termFrequencies;
+    }
+
+    // Frequency of a term in the document, NaN when the result has no frequency for the term
+    public double getTermFrequency(String term) {
+        for (int termId = 0; termId < terms.length; termId++) {
+            if (terms[termId].equals(term)) {
+                return termFrequencies[termId];
+            }
+        }
+        return Double.NaN;
     }
 
-    public void addTermFrequency(String term, double frequency) {
-        termFrequency.put(term, frequency);
+    public double getScore() {
+        return score;
+    }
+
+    public void setScore(double score) {
+        this.score = score;
     }
 
     @Override
     public String toString() {
+        StringBuilder termFrequency = new StringBuilder("{");
+        for (int termId = 0; termId < terms.length; termId++) {
+            termFrequency.append(termId > 0 ? ", " : "").append(terms[termId]).append('=').append(termFrequencies[termId]);
+        }
         return "DocumentTermsInfo{" +
                 "documentName='" + documentName + '\'' +
-                ", termFrequency=" + termFrequency +
+                ", termFrequency=" + termFrequency.append('}') +
+                ", score=" + score +
                 '}';
     }
-
-    public void setTermFrequency(HashMap<String, Double> termFrequency) {
-        this.termFrequency = termFrequency;
-    }
 }
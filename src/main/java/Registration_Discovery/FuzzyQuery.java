@@ -0,0 +1,194 @@
+package Registration_Discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A query word matched with typos, by the edit distance (inserted, deleted or replaced characters) between
+// the word and the whole document words, case insensitive:
+//   distribtued~1   the words at most one edit away from distribtued
+//   distribtued~2   at most two edits away, also written distribtued~
+// The distance is at most 2 and stays below the length of the word, so a short word is never replaced whole.
+// A fuzzy word is expanded into one query term per distance, word~=0 (the word itself) to word~=k, each
+// matching the words exactly that many edits away. They are scored as separate terms, weighted down by
+// their distance (see Scoring), so the closest spellings rank first and each distance has its own IDF.
+// Workers find the dictionary terms of a distance by walking a Levenshtein automaton along the sorted
+// dictionary: a term prefix that no spelling within the distance starts with skips all the terms under it.
+final class FuzzyQuery {
+    static final int MAX_DISTANCE = 2;
+
+    private static final Pattern FUZZY_WORD = Pattern.compile("([^\\s\"~]+)~(\\d*)");
+    private static final Pattern DISTANCE_TERM = Pattern.compile("([^\\s\"~]+)~=(\\d)");
+
+    private final int[] word; // Code points of the lower-cased word
+    private final int distance;
+
+    private FuzzyQuery(String word, int distance) {
+        this.word = word.toLowerCase().codePoints().toArray();
+        this.distance = distance;
+    }
+
+    // The query terms of a fuzzy query word, word~=0 to word~=k, null when the token is not a fuzzy word
+    static String[] expand(String token) {
+        Matcher matcher = FUZZY_WORD.matcher(token);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String word = matcher.group(1);
+        String digits = matcher.group(2);
+        int distance = digits.length() != 1 ? MAX_DISTANCE : Math.min(digits.charAt(0) - '0', MAX_DISTANCE);
+        distance = Math.min(distance, word.codePointCount(0, word.length()) - 1);
+        String[] terms = new String[Math.max(distance, 0) + 1];
+        for (int d = 0; d < terms.length; d++) {
+            terms[d] = word + "~=" + d;
+        }
+        return terms;
+    }
+
+    // The terms with every fuzzy word replaced by its query terms
+    static String[] expandAll(String[] terms) {
+        List<String> expanded = new ArrayList<>(terms.length);
+        for (String term : terms) {
+            String[] distanceTerms = expand(term);
+            if (distanceTerms != null) {
+                expanded.addAll(Arrays.asList(distanceTerms));
+            } else {
+                expanded.add(term);
+            }
+        }
+        return expanded.toArray(new String[0]);
+    }
+
+    // The query of a word~=d term, null for other terms
+    static FuzzyQuery parse(String term) {
+        Matcher matcher = DISTANCE_TERM.matcher(term);
+        return matcher.matches() ? new FuzzyQuery(matcher.group(1), Integer.parseInt(matcher.group(2))) : null;
+    }
+
+    // Edit distance of a word~=d term, -1 for other terms
+    static int distanceOf(String term) {
+        Matcher matcher = DISTANCE_TERM.matcher(term);
+        return matcher.matches() ? Integer.parseInt(matcher.group(2)) : -1;
+    }
+
+    // Ids of the terms of the segment dictionary exactly at the distance from the word, in increasing order.
+    // The automaton state after a term prefix is the row of edit distances between the prefix and every
+    // prefix of the word. Rows are kept for the prefix shared with the previous term, and once every
+    // distance of a row is over the limit the prefix is dead and the walk seeks past its terms.
+    // Terms are copied and decoded into buffers reused for the whole walk, so visiting a term allocates nothing.
+    int[] matchingTerms(Segment segment) {
+        IntList termIds = new IntList();
+        int maxLength = word.length + distance + 1; // Longer prefixes are dead
+        int[][] rows = new int[maxLength + 1][word.length + 1];
+        for (int j = 0; j <= word.length; j++) {
+            rows[0][j] = j;
+        }
+        int[] path = new int[maxLength]; // Code points of the prefix whose rows are computed
+        int depth = 0; // Length of that prefix
+        byte[] bytes = new byte[maxLength * 4]; // Enough for the code points of the longest live prefix
+        int[] term = new int[maxLength]; // Code points of the term, at most maxLength of them
+        int[] ends = new int[maxLength]; // Length in bytes of each prefix of the term
+
+        int termCount = segment.getTermCount();
+        int termId = 0;
+        terms:
+        while (termId < termCount) {
+            int length = decode(bytes, Math.min(segment.copyTerm(termId, bytes), bytes.length), term, ends);
+            int common = 0;
+            while (common < depth && common < length && path[common] == term[common]) {
+                common++;
+            }
+            // A term cut to maxLength code points dies before its end, it is never taken for a shorter one
+            for (depth = common; depth < length; ) {
+                path[depth] = term[depth];
+                if (!step(rows[depth], term[depth], rows[depth + 1])) {
+                    termId = seekPast(segment, bytes, ends[depth]);
+                    continue terms;
+                }
+                depth++;
+            }
+            if (rows[depth][word.length] == distance) {
+                termIds.add(termId);
+            }
+            termId++;
+        }
+        return termIds.toArray();
+    }
+
+    // Decode UTF-8 bytes into code points, as many as fit, along with the byte length of each prefix.
+    // Returns the number of code points, a code point cut at the end of the bytes is left out.
+    private static int decode(byte[] bytes, int length, int[] codePoints, int[] ends) {
+        int count = 0;
+        int i = 0;
+        while (i < length && count < codePoints.length) {
+            int lead = bytes[i] & 0xFF;
+            int size = lead < 0x80 ? 1 : lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : 4;
+            if (i + size > length) {
+                break;
+            }
+            int codePoint = size == 1 ? lead : lead & (0xFF >> (size + 1));
+            for (int k = 1; k < size; k++) {
+                codePoint = codePoint << 6 | bytes[i + k] & 0x3F;
+            }
+            i += size;
+            codePoints[count] = codePoint;
+            ends[count++] = i;
+        }
+        return count;
+    }
+
+    // Compute the row after one more code point of the term, returns whether the prefix is still alive
+    private boolean step(int[] row, int codePoint, int[] next) {
+        next[0] = row[0] + 1;
+        int min = next[0];
+        for (int j = 1; j <= word.length; j++) {
+            int cost = row[j - 1] + (word[j - 1] == codePoint ? 0 : 1);
+            next[j] = Math.min(cost, Math.min(row[j], next[j - 1]) + 1);
+            min = Math.min(min, next[j]);
+        }
+        return min <= distance;
+    }
+
+    // Id of the first term after all the terms starting with the prefix, the first bytes of the term
+    private static int seekPast(Segment segment, byte[] term, int length) {
+        int end = length;
+        while (end > 0 && term[end - 1] == (byte) 0xFF) {
+            end--;
+        }
+        if (end == 0) {
+            return segment.getTermCount();
+        }
+        byte[] next = Arrays.copyOf(term, end); // Smallest byte string greater than every string starting with the prefix
+        next[end - 1]++;
+        return segment.ceilingTerm(next);
+    }
+
+    // Count the document words exactly at the distance, in a document split on whitespace and lower-cased,
+    // the way it is indexed. Used when the documents are scanned instead of read from the index.
+    int countIn(String[] documentWords) {
+        int count = 0;
+        int[][] rows = new int[2][word.length + 1];
+        for (String documentWord : documentWords) {
+            if (documentWord.isEmpty()) {
+                continue;
+            }
+            for (int j = 0; j <= word.length; j++) {
+                rows[0][j] = j;
+            }
+            int current = 0;
+            boolean alive = true;
+            for (int i = 0; i < documentWord.length() && alive; ) {
+                int codePoint = documentWord.codePointAt(i);
+                alive = step(rows[current], codePoint, rows[1 - current]);
+                current = 1 - current;
+                i += Character.charCount(codePoint);
+            }
+            if (alive && rows[current][word.length] == distance) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
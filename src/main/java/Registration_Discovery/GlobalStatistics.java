@@ -0,0 +1,103 @@
+package Registration_Discovery;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Cache of the shard statistics (document count and document frequency of query words) of every
+// worker, used to compute IDF values over the whole cluster.
+// The statistics of a worker are kept as long as its index version does not change, so the stats
+// phase of a query only asks workers about words they were never asked about. Versions are hashes, so
+// responses are ordered by the index generation the worker reports with them: a response computed on
+// an older index than the cached statistics, overtaken by a newer one, is ignored.
+class GlobalStatistics implements OnMembershipChangeCallback {
+    private final Map<String, WorkerStatistics> workers = new ConcurrentHashMap<>();
+
+    // Statistics of one worker at one index version
+    private static class WorkerStatistics {
+        final long indexVersion;
+        long indexGeneration; // Latest generation seen with this version, only changed inside compute
+        final int documentCount;
+        final Map<String, Integer> documentFrequency = new ConcurrentHashMap<>();
+
+        WorkerStatistics(long indexVersion, long indexGeneration, int documentCount) {
+            this.indexVersion = indexVersion;
+            this.indexGeneration = indexGeneration;
+            this.documentCount = documentCount;
+        }
+    }
+
+    // Words of the query whose statistics are not cached for the worker
+    List<String> getMissingWords(String workerAddress, Collection<String> words) {
+        WorkerStatistics statistics = workers.get(workerAddress);
+        if (statistics == null) {
+            return new ArrayList<>(words);
+        }
+        List<String> missingWords = new ArrayList<>();
+        for (String word : words) {
+            if (!statistics.documentFrequency.containsKey(word)) {
+                missingWords.add(word);
+            }
+        }
+        return missingWords;
+    }
+
+    // Record the statistics returned by a worker, dropping what was cached for an older index version.
+    // Statistics of an older generation than the cached ones are ignored.
+    // Returns true when the worker reported a new index version.
+    boolean update(String workerAddress, ShardResult shardStatistics) {
+        boolean[] versionChanged = new boolean[1];
+        workers.compute(workerAddress, (address, current) -> {
+            long version = shardStatistics.getIndexVersion();
+            long generation = shardStatistics.getIndexGeneration();
+            WorkerStatistics statistics = current;
+            if (current == null || (current.indexVersion != version && generation > current.indexGeneration)) {
+                versionChanged[0] = current != null;
+                statistics = new WorkerStatistics(version, generation, shardStatistics.getDocumentCount());
+            }
+            if (statistics.indexVersion == version) { // Same index as the cached statistics, or a newer one
+                statistics.indexGeneration = Math.max(statistics.indexGeneration, generation);
+                statistics.documentFrequency.putAll(shardStatistics.getDocumentFrequency());
+            }
+            return statistics;
+        });
+        return versionChanged[0];
+    }
+
+    // Total number of documents on the given workers
+    int getTotalDocuments(Collection<String> workerAddresses) {
+        int totalDocuments = 0;
+        for (String workerAddress : workerAddresses) {
+            WorkerStatistics statistics = workers.get(workerAddress);
+            if (statistics != null) {
+                totalDocuments += statistics.documentCount;
+            }
+        }
+        return totalDocuments;
+    }
+
+    // Number of documents containing each word on the given workers
+    Map<String, Integer> getDocumentFrequency(Collection<String> workerAddresses, Collection<String> words) {
+        Map<String, Integer> documentFrequency = new HashMap<>();
+        for (String word : words) {
+            int count = 0;
+            for (String workerAddress : workerAddresses) {
+                WorkerStatistics statistics = workers.get(workerAddress);
+                if (statistics != null) {
+                    count += statistics.documentFrequency.getOrDefault(word, 0);
+                }
+            }
+            documentFrequency.put(word, count);
+        }
+        return documentFrequency;
+    }
+
+    @Override
+    public void onWorkerAdded(String address) {
+        // Statistics are fetched by the first query that needs them
+    }
+
+    @Override
+    public void onWorkerRemoved(String address) {
+        workers.remove(address);
+    }
+}
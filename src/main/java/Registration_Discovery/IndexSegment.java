@@ -0,0 +1,249 @@
+package Registration_Discovery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Read-only view over the files of one segment written by SegmentWriter.
+// All files are memory mapped, so terms and postings are read in place from the page cache
+// instead of being loaded as objects on the heap.
+public class IndexSegment implements Segment {
+    private static final int HEADER = 2 * Integer.BYTES;
+
+    private final String name;
+    private final MappedFile terms;
+    private final MappedFile postings;
+    private final MappedFile positions;
+    private final MappedFile norms;
+    private final MappedFile docs;
+    private final TermGramIndex grams;
+
+    private final int termCount;
+    private final long termOffsetsStart;
+    private final long postingsOffsetsStart;
+    private final long positionsOffsetsStart;
+    private final long maxTermFrequenciesStart;
+    private final long documentFrequenciesStart;
+    private final long termBytesStart;
+    private final int documentCount;
+    private final long nameBytesStart;
+
+    private IndexSegment(File directory, String name) throws IOException {
+        this.name = name;
+        this.terms = new MappedFile(new File(directory, name + ".tdict"));
+        this.postings = new MappedFile(new File(directory, name + ".post"));
+        this.positions = new MappedFile(new File(directory, name + ".pos"));
+        this.norms = new MappedFile(new File(directory, name + ".norm"));
+        this.docs = new MappedFile(new File(directory, name + ".docs"));
+        MappedFile gramFile = new MappedFile(new File(directory, name + ".gram"));
+
+        checkHeader(terms, SegmentWriter.TERMS_MAGIC);
+        checkHeader(postings, SegmentWriter.POSTINGS_MAGIC);
+        checkHeader(positions, SegmentWriter.POSITIONS_MAGIC);
+        checkHeader(norms, SegmentWriter.NORMS_MAGIC);
+        checkHeader(docs, SegmentWriter.DOCS_MAGIC);
+        checkHeader(gramFile, SegmentWriter.GRAMS_MAGIC);
+        this.grams = new TermGramIndex(gramFile, HEADER);
+
+        this.termCount = terms.getInt(HEADER);
+        this.termOffsetsStart = HEADER + Integer.BYTES;
+        this.postingsOffsetsStart = termOffsetsStart + (long) (termCount + 1) * Integer.BYTES;
+        this.positionsOffsetsStart = postingsOffsetsStart + (long) termCount * Long.BYTES;
+        this.maxTermFrequenciesStart = positionsOffsetsStart + (long) termCount * Long.BYTES;
+        this.documentFrequenciesStart = maxTermFrequenciesStart + (long) termCount * Double.BYTES;
+        this.termBytesStart = documentFrequenciesStart + (long) termCount * Integer.BYTES;
+
+        this.documentCount = docs.getInt(HEADER);
+        this.nameBytesStart = HEADER + Integer.BYTES + (long) (documentCount + 1) * Integer.BYTES;
+        if (norms.getInt(HEADER) != documentCount) {
+            throw new IOException("Segment " + name + " is corrupted: norms and documents do not match");
+        }
+    }
+
+    public static IndexSegment open(File directory, String name) throws IOException {
+        return new IndexSegment(directory, name);
+    }
+
+    private void checkHeader(MappedFile file, int magic) throws IOException {
+        if (file.length() < HEADER || file.getInt(0) != magic || file.getInt(Integer.BYTES) != SegmentWriter.FORMAT_VERSION) {
+            throw new IOException("Segment " + name + " has an unsupported format");
+        }
+    }
+
+    @Override
+    public int findDocument(String documentName) {
+        // Documents are written in name order
+        int low = 0;
+        int high = documentCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getDocumentName(mid).compareTo(documentName);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    @Override
+    public String getDocumentName(int docId) {
+        long offsets = HEADER + Integer.BYTES + (long) docId * Integer.BYTES;
+        int start = docs.getInt(offsets);
+        int end = docs.getInt(offsets + Integer.BYTES);
+        return readString(docs, nameBytesStart + start, end - start);
+    }
+
+    @Override
+    public int getDocumentLength(int docId) {
+        return norms.getInt(HEADER + Integer.BYTES + (long) docId * Integer.BYTES);
+    }
+
+    @Override
+    public int getTermCount() {
+        return termCount;
+    }
+
+    @Override
+    public String getTerm(int termId) {
+        int start = termStart(termId);
+        return readString(terms, termBytesStart + start, termStart(termId + 1) - start);
+    }
+
+    @Override
+    public int copyTerm(int termId, byte[] buffer) {
+        int start = termStart(termId);
+        int length = termStart(termId + 1) - start;
+        int copied = Math.min(length, buffer.length);
+        for (int i = 0; i < copied; i++) {
+            buffer[i] = terms.get(termBytesStart + start + i);
+        }
+        return length;
+    }
+
+    @Override
+    public int getDocumentFrequency(int termId) {
+        return terms.getInt(documentFrequenciesStart + (long) termId * Integer.BYTES);
+    }
+
+    @Override
+    public double getMaxTermFrequency(int termId) {
+        return Double.longBitsToDouble(terms.getLong(maxTermFrequenciesStart + (long) termId * Double.BYTES));
+    }
+
+    // Binary search the sorted dictionary for an exact term, returns its id or -1
+    public int findTerm(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(mid, term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int ceilingTerm(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compareTerm(mid, term) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Check, without copying the term, whether the term contains the given UTF-8 bytes
+    @Override
+    public boolean termContains(int termId, byte[] pattern) {
+        long start = termBytesStart + termStart(termId);
+        int length = termStart(termId + 1) - termStart(termId);
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (terms.get(start + i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int[] candidateTerms(byte[] pattern) {
+        return grams.candidates(pattern);
+    }
+
+    @Override
+    public void addOccurrences(int termId, int[] counts, int docBase, int[] docMap) {
+        PostingsCursor cursor = postings(termId, new PostingsCursor());
+        while (cursor.next()) {
+            int target = docMap == null ? docBase + cursor.docId() : docMap[cursor.docId()];
+            if (target >= 0) {
+                counts[target] += cursor.count();
+            }
+        }
+    }
+
+    // Position a cursor on the postings of a term, the cursor can be reused for every term
+    @Override
+    public PostingsCursor postings(int termId, PostingsCursor cursor) {
+        long position = terms.getLong(postingsOffsetsStart + (long) termId * Long.BYTES);
+        return cursor.reset(postings, position, getDocumentFrequency(termId));
+    }
+
+    @Override
+    public PostingsCursor positions(int termId, PostingsCursor cursor) {
+        long position = terms.getLong(positionsOffsetsStart + (long) termId * Long.BYTES);
+        return postings(termId, cursor).withPositions(positions, position);
+    }
+
+    private int termStart(int termId) {
+        return terms.getInt(termOffsetsStart + (long) termId * Integer.BYTES);
+    }
+
+    private int compareTerm(int termId, byte[] term) {
+        long start = termBytesStart + termStart(termId);
+        int length = termStart(termId + 1) - termStart(termId);
+        int common = Math.min(length, term.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(terms.get(start + i) & 0xFF, term[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, term.length);
+    }
+
+    private static String readString(MappedFile file, long start, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = file.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,103 @@
+package Registration_Discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Keeps the index of a documents folder up to date while the worker is running.
+// File changes are collected and applied together every refresh interval, each refresh publishing a new
+// index snapshot. Queries see the changed documents at most one refresh interval after they were written.
+class IndexWatcher implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(IndexWatcher.class);
+    // Time between two refreshes of the index, the delay before changed documents become searchable
+    private static final long REFRESH_MILLIS = Long.getLong("index.refreshMillis", 1000);
+
+    private final File folder;
+    private final File indexDirectory;
+    private final Consumer<InvertedIndex> publisher; // Receives every new snapshot
+    private InvertedIndex index;
+
+    IndexWatcher(File folder, File indexDirectory, InvertedIndex index, Consumer<InvertedIndex> publisher) {
+        this.folder = folder;
+        this.indexDirectory = indexDirectory;
+        this.index = index;
+        this.publisher = publisher;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            folder.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            logger.info("Watching {} for document changes", folder);
+
+            Set<String> changed = new LinkedHashSet<>();
+            boolean overflow = false;
+            long refreshAt = Long.MAX_VALUE;
+
+            while (true) {
+                long waitMillis = refreshAt == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, refreshAt - System.currentTimeMillis());
+                WatchKey key = watchService.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            overflow = true; // Events were lost, the whole folder has to be checked
+                        } else {
+                            String name = event.context().toString();
+                            if (name.endsWith(".txt")) {
+                                changed.add(name);
+                            }
+                        }
+                    }
+                    if (!key.reset()) {
+                        logger.warn("{} is no longer accessible, stopped watching it", folder);
+                        return;
+                    }
+                    if ((overflow || !changed.isEmpty()) && refreshAt == Long.MAX_VALUE) {
+                        refreshAt = System.currentTimeMillis() + REFRESH_MILLIS;
+                    }
+                }
+
+                if (System.currentTimeMillis() >= refreshAt) {
+                    refresh(changed, overflow);
+                    changed.clear();
+                    overflow = false;
+                    refreshAt = Long.MAX_VALUE;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not watch {}: {}", folder, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void refresh(Set<String> changed, boolean overflow) {
+        try {
+            if (overflow) {
+                index = InvertedIndex.openOrBuild(folder, indexDirectory);
+            } else {
+                index = index.update(folder, changed);
+            }
+            publisher.accept(index);
+            logger.info("Refreshed index of {} ({} documents changed, {} documents, {} memory segments)",
+                    folder, overflow ? "all" : changed.size(), index.getDocumentCount(), index.getMemorySegmentCount());
+        } catch (RuntimeException e) {
+            logger.error("Could not refresh index of {}: {}", folder, e.getMessage());
+        }
+    }
+}
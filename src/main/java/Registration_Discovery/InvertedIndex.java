@@ -0,0 +1,977 @@
+package Registration_Discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+// Inverted index over the .txt documents of a single Worker.
+// Terms are the lower-cased whitespace separated tokens of every document, and each term
+// maps to a postings list of (document id, number of occurrences) pairs, plus the word positions
+// of the occurrences for phrase and proximity queries.
+// The index is a list of immutable memory-mapped segments (see SegmentWriter) stored in a
+// directory next to the documents folder, plus a "segments" manifest naming the live segments.
+// An InvertedIndex is an immutable snapshot: update() returns a new snapshot where changed documents
+// are marked deleted in their old segment and added again in a small in-memory segment, so queries
+// running on the previous snapshot are never blocked or disturbed.
+public class InvertedIndex {
+    private static final Logger logger = LoggerFactory.getLogger(InvertedIndex.class);
+    private static final int MAGIC = 0x49445832; // "IDX2"
+    private static final int FORMAT_VERSION = 2;
+    private static final String MANIFEST = "segments";
+    // Amount of text buffered in memory before a segment is flushed to disk
+    private static final long SEGMENT_BUFFER_BYTES = Long.getLong("index.segmentBufferMB", 64) << 20;
+    // In-memory segments are merged into one when there are more than this
+    private static final int MAX_MEMORY_SEGMENTS = Integer.getInteger("index.maxMemorySegments", 8);
+    // Term cursors of query words matching more dictionary terms of a segment read all their postings at once
+    private static final int MAX_MERGED_TERMS = 8;
+
+    private final List<Segment> segments;
+    private final List<BitSet> deletions; // Segment -> deleted local ids, null when none are deleted
+    private final int[] docBases; // Segment -> id of its first live document in the whole index
+    private final int[][] docMaps; // Segment -> index id of every local id (-1 when deleted), null without deletions
+    private final int[][] liveDocs; // Segment -> local id of every live document, null without deletions
+    private final int documentCount; // Live documents
+    private final long fingerprint; // Fingerprint of the folder the index was built from
+    private final long generation; // Increases with every snapshot, see nextGeneration()
+
+    // Generation of the last snapshot created in this process
+    private static final AtomicLong lastGeneration = new AtomicLong();
+
+    private InvertedIndex(List<Segment> segments, List<BitSet> deletions, long fingerprint) {
+        this.segments = segments;
+        this.deletions = deletions;
+        this.fingerprint = fingerprint;
+        this.generation = nextGeneration();
+        this.docBases = new int[segments.size()];
+        this.docMaps = new int[segments.size()][];
+        this.liveDocs = new int[segments.size()][];
+        int base = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            docBases[i] = base;
+            int segmentDocuments = segments.get(i).getDocumentCount();
+            BitSet deleted = deletions.get(i);
+            if (deleted == null) {
+                base += segmentDocuments;
+                continue;
+            }
+            docMaps[i] = new int[segmentDocuments];
+            liveDocs[i] = new int[segmentDocuments - deleted.cardinality()];
+            int live = 0;
+            for (int docId = 0; docId < segmentDocuments; docId++) {
+                if (deleted.get(docId)) {
+                    docMaps[i][docId] = -1;
+                } else {
+                    docMaps[i][docId] = base + live;
+                    liveDocs[i][live++] = docId;
+                }
+            }
+            base += live;
+        }
+        this.documentCount = base;
+    }
+
+    // Open the persisted index if it is still up to date with the folder, otherwise rebuild and persist it
+    public static InvertedIndex openOrBuild(File folder, File indexDirectory) {
+        File[] files = listDocuments(folder);
+        long currentFingerprint = fingerprint(files);
+
+        if (new File(indexDirectory, MANIFEST).exists()) {
+            try {
+                InvertedIndex index = open(indexDirectory);
+                if (index.fingerprint == currentFingerprint) {
+                    logger.info("Opened index {} ({} documents, {} segments)", indexDirectory, index.getDocumentCount(), index.segments.size());
+                    return index;
+                }
+                logger.info("Index {} is stale, rebuilding", indexDirectory);
+            } catch (IOException e) {
+                logger.warn("Could not open index {}, rebuilding: {}", indexDirectory, e.getMessage());
+            }
+        }
+
+        try {
+            return build(files, indexDirectory, currentFingerprint);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not build index " + indexDirectory, e);
+        }
+    }
+
+    // Build the index by reading every document once, flushing a segment whenever the buffer is full
+    private static InvertedIndex build(File[] files, File indexDirectory, long fingerprint) throws IOException {
+        if (indexDirectory.isFile()) {
+            Files.delete(indexDirectory.toPath()); // Left over from the single-file index format
+        }
+        Files.createDirectories(indexDirectory.toPath());
+
+        String generation = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+        List<String> segmentNames = new ArrayList<>();
+        SegmentWriter writer = new SegmentWriter();
+
+        for (File file : files) {
+            byte[] content;
+            try {
+                content = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                System.err.println("Error reading file: " + file.getName());
+                content = new byte[0];
+            }
+            writer.addDocument(file.getName(), content);
+
+            if (writer.getBufferedBytes() >= SEGMENT_BUFFER_BYTES) {
+                segmentNames.add(flush(writer, indexDirectory, generation, segmentNames.size()));
+                writer = new SegmentWriter();
+            }
+        }
+        if (writer.getDocumentCount() > 0) {
+            segmentNames.add(flush(writer, indexDirectory, generation, segmentNames.size()));
+        }
+
+        writeManifest(indexDirectory, fingerprint, segmentNames);
+        deleteUnreferencedFiles(indexDirectory, segmentNames);
+
+        InvertedIndex index = open(indexDirectory);
+        logger.info("Built index {} ({} documents, {} segments)", indexDirectory, index.getDocumentCount(), segmentNames.size());
+        return index;
+    }
+
+    private static String flush(SegmentWriter writer, File indexDirectory, String generation, int number) throws IOException {
+        String segmentName = "_" + generation + "_" + number;
+        writer.write(indexDirectory, segmentName);
+        logger.debug("Flushed segment {} with {} documents", segmentName, writer.getDocumentCount());
+        return segmentName;
+    }
+
+    // Open the segments named by the manifest of an index directory
+    public static InvertedIndex open(File indexDirectory) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(indexDirectory, MANIFEST))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported index format");
+            }
+            long fingerprint = in.readLong();
+            int segmentCount = in.readInt();
+            List<Segment> segments = new ArrayList<>(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                segments.add(IndexSegment.open(indexDirectory, in.readUTF()));
+            }
+            return new InvertedIndex(segments, new ArrayList<>(Collections.nCopies(segmentCount, null)), fingerprint);
+        }
+    }
+
+    // Atomically replace the manifest so a crash never leaves a half written index visible
+    private static void writeManifest(File indexDirectory, long fingerprint, List<String> segmentNames) throws IOException {
+        File tmpFile = new File(indexDirectory, MANIFEST + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(segmentNames.size());
+            for (String segmentName : segmentNames) {
+                out.writeUTF(segmentName);
+            }
+        }
+        Files.move(tmpFile.toPath(), new File(indexDirectory, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteUnreferencedFiles(File indexDirectory, List<String> segmentNames) {
+        File[] files = indexDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            int dot = fileName.lastIndexOf('.');
+            String segmentName = dot < 0 ? fileName : fileName.substring(0, dot);
+            if (!fileName.equals(MANIFEST) && !segmentNames.contains(segmentName) && !file.delete()) {
+                logger.warn("Could not delete old index file {}", file);
+            }
+        }
+    }
+
+    // New snapshot where the given documents of the folder are removed, and the ones still in the folder
+    // are indexed again from their current content. This snapshot is left unchanged.
+    public InvertedIndex update(File folder, Collection<String> changedDocuments) {
+        List<Segment> newSegments = new ArrayList<>(segments);
+        List<BitSet> newDeletions = new ArrayList<>(deletions);
+        for (String documentName : changedDocuments) {
+            delete(newSegments, newDeletions, documentName);
+        }
+
+        SegmentWriter writer = new SegmentWriter();
+        for (String documentName : changedDocuments) {
+            File file = new File(folder, documentName);
+            if (file.isFile()) {
+                addDocument(writer, file);
+            }
+        }
+        if (writer.getDocumentCount() > 0) {
+            newSegments.add(writer.toMemorySegment());
+            newDeletions.add(null);
+        }
+
+        long memorySegments = newSegments.stream().filter(segment -> segment instanceof MemorySegment).count();
+        if (memorySegments > MAX_MEMORY_SEGMENTS) {
+            mergeMemorySegments(folder, newSegments, newDeletions);
+        }
+        dropEmptySegments(newSegments, newDeletions);
+        return new InvertedIndex(newSegments, newDeletions, folderVersion(folder));
+    }
+
+    // Mark the live copy of a document deleted, copying the deletions of its segment
+    private static void delete(List<Segment> segments, List<BitSet> deletions, String documentName) {
+        for (int i = 0; i < segments.size(); i++) {
+            int docId = segments.get(i).findDocument(documentName);
+            BitSet deleted = deletions.get(i);
+            if (docId >= 0 && (deleted == null || !deleted.get(docId))) {
+                BitSet copy = deleted == null ? new BitSet(segments.get(i).getDocumentCount()) : (BitSet) deleted.clone();
+                copy.set(docId);
+                deletions.set(i, copy);
+            }
+        }
+    }
+
+    // Replace all the in-memory segments by one, indexing their live documents again
+    private static void mergeMemorySegments(File folder, List<Segment> segments, List<BitSet> deletions) {
+        SegmentWriter writer = new SegmentWriter();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (!(segments.get(i) instanceof MemorySegment)) {
+                continue;
+            }
+            Segment segment = segments.remove(i);
+            BitSet deleted = deletions.remove(i);
+            for (int docId = 0; docId < segment.getDocumentCount(); docId++) {
+                File file = new File(folder, segment.getDocumentName(docId));
+                if ((deleted == null || !deleted.get(docId)) && file.isFile()) {
+                    addDocument(writer, file);
+                }
+            }
+        }
+        if (writer.getDocumentCount() > 0) {
+            segments.add(writer.toMemorySegment());
+            deletions.add(null);
+        }
+    }
+
+    private static void dropEmptySegments(List<Segment> segments, List<BitSet> deletions) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i) instanceof MemorySegment && deletions.get(i) != null
+                    && deletions.get(i).cardinality() == segments.get(i).getDocumentCount()) {
+                segments.remove(i);
+                deletions.remove(i);
+            }
+        }
+    }
+
+    private static void addDocument(SegmentWriter writer, File file) {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            System.err.println("Error reading file: " + file.getName());
+            content = new byte[0];
+        }
+        writer.addDocument(file.getName(), content);
+    }
+
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    // Number of in-memory segments, they hold the documents changed since the index was opened
+    public int getMemorySegmentCount() {
+        return (int) segments.stream().filter(segment -> segment instanceof MemorySegment).count();
+    }
+
+    // Version of the indexed content, it changes whenever the documents folder changes
+    public long getVersion() {
+        return fingerprint;
+    }
+
+    // Generation of the snapshot: later snapshots have larger generations, unlike versions, which are hashes
+    public long getGeneration() {
+        return generation;
+    }
+
+    // A generation larger than every earlier one, also across restarts as it is at least the current time in ms
+    static long nextGeneration() {
+        return lastGeneration.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
+
+    // Version the index of a folder would have in its current state, without building it
+    public static long folderVersion(File folder) {
+        return fingerprint(listDocuments(folder));
+    }
+
+    public String getDocumentName(int docId) {
+        int segment = segmentOf(docId);
+        return segments.get(segment).getDocumentName(localId(segment, docId));
+    }
+
+    public int getDocumentLength(int docId) {
+        int segment = segmentOf(docId);
+        return segments.get(segment).getDocumentLength(localId(segment, docId));
+    }
+
+    private int localId(int segment, int docId) {
+        int live = docId - docBases[segment];
+        return liveDocs[segment] == null ? live : liveDocs[segment][live];
+    }
+
+    // Count, for every document, the occurrences of a query term: the matches of a phrase or
+    // proximity query (see PhraseQuery), the words at one edit distance of a fuzzy word (see FuzzyQuery),
+    // or the words containing a single query word
+    public int[] countOccurrences(String queryTerm) {
+        FuzzyQuery fuzzy = FuzzyQuery.parse(queryTerm);
+        if (fuzzy != null) {
+            return countTermOccurrences(fuzzy::matchingTerms);
+        }
+        PhraseQuery phrase = PhraseQuery.parse(queryTerm);
+        return phrase != null ? countPhraseOccurrences(phrase) : countWordOccurrences(queryTerm);
+    }
+
+    // Count, for every document, the words that contain the query word (case insensitive).
+    // Only the postings of the dictionary terms that contain the query word are read.
+    public int[] countWordOccurrences(String queryWord) {
+        byte[] word = queryWord.toLowerCase().getBytes(StandardCharsets.UTF_8);
+        return countTermOccurrences(segment -> matchingTerms(segment, word));
+    }
+
+    // Add up the postings of the dictionary terms selected in every segment
+    private int[] countTermOccurrences(Function<Segment, int[]> matchingTerms) {
+        int[] counts = new int[documentCount];
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            for (int termId : matchingTerms.apply(segment)) {
+                segment.addOccurrences(termId, counts, docBases[i], docMaps[i]);
+            }
+        }
+        return counts;
+    }
+
+    // Count, for every document, the matches of a phrase or proximity query.
+    // Only the postings and positions of the dictionary terms containing one of its words are read, and
+    // positions are compared only in the documents where all of its words occur.
+    public int[] countPhraseOccurrences(PhraseQuery phrase) {
+        String[] words = phrase.getWords();
+        int[] counts = new int[documentCount];
+        if (words.length == 0) {
+            return counts;
+        }
+
+        int[][] positions = new int[words.length][];
+        int[] from = new int[words.length];
+        int[] to = new int[words.length];
+        segments:
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            WordOccurrences[] occurrences = new WordOccurrences[words.length];
+            for (int j = 0; j < words.length; j++) {
+                occurrences[j] = WordOccurrences.read(segment, matchingTerms(segment, words[j].getBytes(StandardCharsets.UTF_8)));
+                if (occurrences[j].documents.length == 0) {
+                    continue segments; // A word is missing from the whole segment
+                }
+                positions[j] = occurrences[j].positions;
+            }
+
+            // Walk the documents of the words together, comparing positions where they all occur
+            int[] next = new int[words.length]; // Word -> index of its current document
+            int docId = occurrences[0].documents[0];
+            while (true) {
+                boolean allMatch = true;
+                for (int j = 0; j < words.length; j++) {
+                    int[] documents = occurrences[j].documents;
+                    while (next[j] < documents.length && documents[next[j]] < docId) {
+                        next[j]++;
+                    }
+                    if (next[j] == documents.length) {
+                        continue segments;
+                    }
+                    if (documents[next[j]] > docId) {
+                        docId = documents[next[j]]; // Skip to the next document holding this word
+                        allMatch = false;
+                        break;
+                    }
+                }
+                if (!allMatch) {
+                    continue;
+                }
+
+                int target = docMaps[i] == null ? docBases[i] + docId : docMaps[i][docId];
+                if (target >= 0) {
+                    for (int j = 0; j < words.length; j++) {
+                        from[j] = occurrences[j].starts[next[j]];
+                        to[j] = occurrences[j].starts[next[j] + 1];
+                    }
+                    counts[target] = phrase.countMatches(positions, from, to);
+                }
+                docId++;
+            }
+        }
+        return counts;
+    }
+
+    // Document-at-a-time cursor over the occurrences of a query term, with the same counts as countOccurrences.
+    // Postings are decoded lazily, and positions only in the documents holding every word of a phrase,
+    // so documents the caller skips are never scored.
+    public TermCursor termCursor(String queryTerm) {
+        FuzzyQuery fuzzy = FuzzyQuery.parse(queryTerm);
+        if (fuzzy != null) {
+            return termsCursor(fuzzy::matchingTerms);
+        }
+        PhraseQuery phrase = PhraseQuery.parse(queryTerm);
+        if (phrase == null) {
+            return wordCursor(queryTerm.toLowerCase().getBytes(StandardCharsets.UTF_8));
+        }
+        String[] words = phrase.getWords();
+        int[][][] termIds = new int[words.length][segments.size()][]; // Word -> segment -> terms containing the word
+        for (int j = 0; j < words.length; j++) {
+            byte[] word = words[j].getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < segments.size(); i++) {
+                termIds[j][i] = matchingTerms(segments.get(i), word);
+            }
+        }
+        // A phrase matches at most as often as each of its words, a proximity pair as often as its first word
+        double maxTermFrequency = words.length == 0 ? 0 : 1;
+        for (int j = 0; j < (phrase.isProximity() ? 1 : words.length); j++) {
+            maxTermFrequency = Math.min(maxTermFrequency, maxTermFrequency(termIds[j]));
+        }
+        return new PhraseCursor(this, phrase, termIds, maxTermFrequency);
+    }
+
+    // Number of documents where a query term occurs. A segment without deletions where a single dictionary
+    // term matches a word gives the document frequency stored with the term, otherwise the documents are
+    // counted along the postings of the term, where the cursor skips the deleted ones.
+    public int documentFrequency(String queryTerm) {
+        FuzzyQuery fuzzy = FuzzyQuery.parse(queryTerm);
+        if (fuzzy == null && PhraseQuery.parse(queryTerm) != null) {
+            return countDocuments(termCursor(queryTerm));
+        }
+        byte[] word = queryTerm.toLowerCase().getBytes(StandardCharsets.UTF_8);
+        int documentFrequency = 0;
+        int[][] termIds = new int[segments.size()][]; // Segment -> terms whose documents are still to count
+        for (int i = 0; i < termIds.length; i++) {
+            Segment segment = segments.get(i);
+            termIds[i] = fuzzy != null ? fuzzy.matchingTerms(segment) : matchingTerms(segment, word);
+            if (termIds[i].length == 1 && deletions.get(i) == null) {
+                documentFrequency += segment.getDocumentFrequency(termIds[i][0]);
+                termIds[i] = new int[0];
+            }
+        }
+        return documentFrequency + countDocuments(termsCursor(termIds));
+    }
+
+    private static int countDocuments(TermCursor cursor) {
+        int count = 0;
+        while (cursor.nextDoc() != TermCursor.NO_MORE_DOCS) {
+            count++;
+        }
+        return count;
+    }
+
+    private TermCursor wordCursor(byte[] word) {
+        return termsCursor(segment -> matchingTerms(segment, word));
+    }
+
+    // Cursor over the postings of the dictionary terms selected in every segment
+    private TermCursor termsCursor(Function<Segment, int[]> matchingTerms) {
+        int[][] termIds = new int[segments.size()][]; // Segment -> terms matching the query term
+        for (int i = 0; i < termIds.length; i++) {
+            termIds[i] = matchingTerms.apply(segments.get(i));
+        }
+        return termsCursor(termIds);
+    }
+
+    private TermCursor termsCursor(int[][] termIds) {
+        double maxTermFrequency = maxTermFrequency(termIds);
+        boolean manyTerms = false;
+        for (int[] segmentTermIds : termIds) {
+            manyTerms |= segmentTermIds.length > MAX_MERGED_TERMS;
+        }
+        if (!manyTerms) {
+            return new WordCursor(this, termIds, maxTermFrequency);
+        }
+        // Merging the postings of many terms costs more than adding them all up front
+        int[] counts = new int[documentCount];
+        for (int i = 0; i < termIds.length; i++) {
+            for (int termId : termIds[i]) {
+                segments.get(i).addOccurrences(termId, counts, docBases[i], docMaps[i]);
+            }
+        }
+        return TermCursor.of(counts, maxTermFrequency);
+    }
+
+    // Upper bound of the frequency of a word in a document, given the terms matching it in every segment
+    private double maxTermFrequency(int[][] termIds) {
+        double maxTermFrequency = 0;
+        for (int i = 0; i < termIds.length; i++) {
+            double segmentBound = 0;
+            for (int termId : termIds[i]) {
+                segmentBound += segments.get(i).getMaxTermFrequency(termId);
+            }
+            maxTermFrequency = Math.max(maxTermFrequency, Math.min(1, segmentBound)); // Every word of a document is one term
+        }
+        return maxTermFrequency;
+    }
+
+    // Lowest local id of a segment that can map to target or a later index id
+    private int localTarget(int segment, int target) {
+        int live = target - docBases[segment];
+        if (live <= 0) {
+            return 0;
+        }
+        if (liveDocs[segment] == null) {
+            return live;
+        }
+        return live < liveDocs[segment].length ? liveDocs[segment][live] : segments.get(segment).getDocumentCount();
+    }
+
+    // Index id of a local document of a segment, -1 when it is deleted
+    private int indexId(int segment, int localId) {
+        return docMaps[segment] == null ? docBases[segment] + localId : docMaps[segment][localId];
+    }
+
+    // Index id after the last live document of a segment
+    private int segmentEnd(int segment) {
+        return segment + 1 < docBases.length ? docBases[segment + 1] : documentCount;
+    }
+
+    // Cursor over the documents containing a query word: in every segment, the union of the postings of
+    // the dictionary terms containing the word (or at the distance of a fuzzy word), mapped to index ids
+    // and skipping deleted documents
+    private static final class WordCursor extends TermCursor {
+        private final InvertedIndex index;
+        private final int[][] termIds; // Segment -> terms matching the word
+        private final double maxTermFrequency;
+        private int segment = -1;
+        private PostingsUnion postings; // Of the current segment
+        private int docId = -1;
+        private int count;
+
+        WordCursor(InvertedIndex index, int[][] termIds, double maxTermFrequency) {
+            this.index = index;
+            this.termIds = termIds;
+            this.maxTermFrequency = maxTermFrequency;
+        }
+
+        @Override
+        int docId() {
+            return docId;
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        @Override
+        double maxTermFrequency() {
+            return maxTermFrequency;
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            while (true) {
+                if (postings != null) {
+                    int localId = postings.advance(index.localTarget(segment, target));
+                    while (localId != NO_MORE_DOCS) {
+                        int id = index.indexId(segment, localId);
+                        if (id >= 0) {
+                            count = postings.count();
+                            return docId = id;
+                        }
+                        localId = postings.advance(localId + 1); // Deleted document
+                    }
+                }
+                if (!openNextSegment(target)) {
+                    return docId = NO_MORE_DOCS;
+                }
+            }
+        }
+
+        // Move to the next segment holding ids from target on, with the postings of its matching terms
+        private boolean openNextSegment(int target) {
+            postings = null;
+            while (++segment < termIds.length) {
+                if (index.segmentEnd(segment) > target && termIds[segment].length > 0) {
+                    postings = new PostingsUnion(index.segments.get(segment), termIds[segment], false);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Cursor over the documents matching a phrase or proximity query. In every segment the documents holding
+    // all of its words are found first: the rarest word leads, and the others jump to its documents over their
+    // skip tables. Positions are only read in those documents, to count the matches.
+    private static final class PhraseCursor extends TermCursor {
+        private final InvertedIndex index;
+        private final PhraseQuery phrase;
+        private final int[][][] termIds; // Word -> segment -> terms containing the word
+        private final double maxTermFrequency;
+        private final int[][] positions; // Word -> its positions in the current document, from 0 to to[word]
+        private final int[] from;
+        private final int[] to;
+        private int segment = -1;
+        private PostingsUnion[] words; // Word -> its postings in the current segment
+        private int[] order; // Words by increasing document frequency in the current segment
+        private int docId = -1;
+        private int count;
+
+        PhraseCursor(InvertedIndex index, PhraseQuery phrase, int[][][] termIds, double maxTermFrequency) {
+            this.index = index;
+            this.phrase = phrase;
+            this.termIds = termIds;
+            this.maxTermFrequency = maxTermFrequency;
+            this.positions = new int[termIds.length][];
+            this.from = new int[termIds.length];
+            this.to = new int[termIds.length];
+        }
+
+        @Override
+        int docId() {
+            return docId;
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        @Override
+        double maxTermFrequency() {
+            return maxTermFrequency;
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            while (true) {
+                if (words != null) {
+                    int localId = intersect(index.localTarget(segment, target));
+                    while (localId != NO_MORE_DOCS) {
+                        int id = index.indexId(segment, localId);
+                        if (id >= 0 && (count = countMatches()) > 0) {
+                            return docId = id;
+                        }
+                        localId = intersect(localId + 1);
+                    }
+                }
+                if (!openNextSegment(target)) {
+                    return docId = NO_MORE_DOCS;
+                }
+            }
+        }
+
+        // First local document from target on holding every word, or NO_MORE_DOCS
+        private int intersect(int target) {
+            int candidate = target;
+            int agreeing = 0;
+            for (int i = 0; agreeing < order.length; i = (i + 1) % order.length) {
+                int localId = words[order[i]].advance(candidate);
+                if (localId == NO_MORE_DOCS) {
+                    return NO_MORE_DOCS;
+                }
+                if (localId == candidate) {
+                    agreeing++;
+                } else {
+                    candidate = localId;
+                    agreeing = 1;
+                }
+            }
+            return candidate;
+        }
+
+        // Matches of the phrase in the document every word is on
+        private int countMatches() {
+            for (int j = 0; j < words.length; j++) {
+                to[j] = words[j].readPositions();
+                positions[j] = words[j].positions;
+            }
+            return phrase.countMatches(positions, from, to);
+        }
+
+        // Move to the next segment holding ids from target on and all the words of the phrase
+        private boolean openNextSegment(int target) {
+            words = null;
+            segments:
+            while (++segment < index.segments.size()) {
+                if (termIds.length == 0 || index.segmentEnd(segment) <= target) {
+                    continue;
+                }
+                Segment current = index.segments.get(segment);
+                long[] documentFrequencies = new long[termIds.length]; // At most, terms of a word share documents
+                for (int j = 0; j < termIds.length; j++) {
+                    if (termIds[j][segment].length == 0) {
+                        continue segments; // A word is missing from the whole segment
+                    }
+                    for (int termId : termIds[j][segment]) {
+                        documentFrequencies[j] += current.getDocumentFrequency(termId);
+                    }
+                }
+                words = new PostingsUnion[termIds.length];
+                for (int j = 0; j < termIds.length; j++) {
+                    words[j] = new PostingsUnion(current, termIds[j][segment], true);
+                }
+                order = IntStream.range(0, termIds.length).boxed()
+                        .sorted(Comparator.comparingLong(j -> documentFrequencies[j]))
+                        .mapToInt(Integer::intValue).toArray();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Union of the postings of some terms of a segment, in a heap ordered by document: the local documents holding
+    // any of the terms, with the occurrences of all of them
+    private static final class PostingsUnion {
+        private final PostingsCursor[] heap;
+        private int heapSize;
+        int[] positions = new int[16]; // Filled by readPositions
+
+        PostingsUnion(Segment segment, int[] termIds, boolean withPositions) {
+            heap = new PostingsCursor[termIds.length];
+            for (int termId : termIds) {
+                PostingsCursor cursor = withPositions ? segment.positions(termId, new PostingsCursor())
+                        : segment.postings(termId, new PostingsCursor());
+                if (cursor.next()) {
+                    heap[heapSize] = cursor;
+                    siftUp(heapSize++);
+                }
+            }
+        }
+
+        // Move to the first document with a local id of at least target, returns its id or NO_MORE_DOCS
+        int advance(int target) {
+            while (heapSize > 0 && heap[0].docId() < target) {
+                if (heap[0].advance(target)) {
+                    siftDown(0);
+                } else {
+                    removeTop();
+                }
+            }
+            return heapSize > 0 ? heap[0].docId() : TermCursor.NO_MORE_DOCS;
+        }
+
+        // Occurrences of the terms in the current document
+        int count() {
+            return sumCounts(0, heap[0].docId());
+        }
+
+        // Read the positions of the terms in the current document into positions, in increasing order,
+        // returns their number. Only valid with positions, once per document.
+        int readPositions() {
+            int count = count();
+            if (positions.length < count) {
+                positions = new int[Math.max(count, 2 * positions.length)];
+            }
+            addPositions(0, heap[0].docId(), 0);
+            if (heapSize > 1) { // Several terms of a word can be in the document
+                Arrays.sort(positions, 0, count);
+            }
+            return count;
+        }
+
+        private int sumCounts(int node, int localId) {
+            if (node >= heapSize || heap[node].docId() != localId) {
+                return 0; // Children are never below their parent
+            }
+            return heap[node].count() + sumCounts(2 * node + 1, localId) + sumCounts(2 * node + 2, localId);
+        }
+
+        // Append the positions of every cursor of the subtree on the document, returns the next free index
+        private int addPositions(int node, int localId, int size) {
+            if (node >= heapSize || heap[node].docId() != localId) {
+                return size;
+            }
+            PostingsCursor cursor = heap[node];
+            for (int k = 0; k < cursor.count(); k++) {
+                positions[size++] = cursor.nextPosition();
+            }
+            return addPositions(2 * node + 2, localId, addPositions(2 * node + 1, localId, size));
+        }
+
+        private void removeTop() {
+            heap[0] = heap[--heapSize];
+            heap[heapSize] = null;
+            siftDown(0);
+        }
+
+        private void siftUp(int node) {
+            PostingsCursor cursor = heap[node];
+            while (node > 0) {
+                int parent = (node - 1) >>> 1;
+                if (heap[parent].docId() <= cursor.docId()) {
+                    break;
+                }
+                heap[node] = heap[parent];
+                node = parent;
+            }
+            heap[node] = cursor;
+        }
+
+        private void siftDown(int node) {
+            if (heapSize == 0) {
+                return;
+            }
+            PostingsCursor cursor = heap[node];
+            while (true) {
+                int child = 2 * node + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && heap[child + 1].docId() < heap[child].docId()) {
+                    child++;
+                }
+                if (cursor.docId() <= heap[child].docId()) {
+                    break;
+                }
+                heap[node] = heap[child];
+                node = child;
+            }
+            heap[node] = cursor;
+        }
+    }
+
+    // Terms of the segment dictionary containing the given UTF-8 bytes: the candidates of the trigram index
+    // that really contain them
+    private static int[] matchingTerms(Segment segment, byte[] word) {
+        IntList termIds = new IntList();
+        int[] candidates = segment.candidateTerms(word);
+        if (candidates == null) { // Too short for the trigram index, check every term
+            for (int termId = 0; termId < segment.getTermCount(); termId++) {
+                if (segment.termContains(termId, word)) {
+                    termIds.add(termId);
+                }
+            }
+        } else {
+            for (int termId : candidates) {
+                if (segment.termContains(termId, word)) {
+                    termIds.add(termId);
+                }
+            }
+        }
+        return termIds.toArray();
+    }
+
+    // Positions of all the terms matching a query word in one segment, grouped by document:
+    // the positions in documents[d] are positions[starts[d]] to positions[starts[d + 1] - 1], in increasing order
+    private static final class WordOccurrences {
+        final int[] documents;
+        final int[] starts;
+        final int[] positions;
+
+        private WordOccurrences(int[] documents, int[] starts, int[] positions) {
+            this.documents = documents;
+            this.starts = starts;
+            this.positions = positions;
+        }
+
+        static WordOccurrences read(Segment segment, int[] termIds) {
+            IntList documents = new IntList();
+            IntList starts = new IntList();
+            IntList positions = new IntList();
+            PostingsCursor cursor = new PostingsCursor();
+            if (termIds.length == 1) {
+                // A single term is already in document and position order
+                segment.positions(termIds[0], cursor);
+                while (cursor.next()) {
+                    documents.add(cursor.docId());
+                    starts.add(positions.size());
+                    for (int k = 0; k < cursor.count(); k++) {
+                        positions.add(cursor.nextPosition());
+                    }
+                }
+            } else if (termIds.length > 1) {
+                // Several terms contain the word: sort their occurrences by document, then position
+                LongBuffer buffer = new LongBuffer();
+                for (int termId : termIds) {
+                    segment.positions(termId, cursor);
+                    while (cursor.next()) {
+                        for (int k = 0; k < cursor.count(); k++) {
+                            buffer.add((long) cursor.docId() << 32 | cursor.nextPosition());
+                        }
+                    }
+                }
+                long[] occurrences = buffer.toArray();
+                Arrays.sort(occurrences);
+                for (long occurrence : occurrences) {
+                    int docId = (int) (occurrence >>> 32);
+                    if (documents.size() == 0 || documents.get(documents.size() - 1) != docId) {
+                        documents.add(docId);
+                        starts.add(positions.size());
+                    }
+                    positions.add((int) occurrence);
+                }
+            }
+            starts.add(positions.size());
+            return new WordOccurrences(documents.toArray(), starts.toArray(), positions.toArray());
+        }
+    }
+
+    // Growable long array for the occurrences of the terms of a word
+    private static final class LongBuffer {
+        long[] values = new long[16];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private int segmentOf(int docId) {
+        // Segments may have no live documents and share their base with the next one: take the last segment
+        // whose base is not above the id
+        int low = 0;
+        int high = docBases.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (docBases[mid] <= docId) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Get all .txt files of the folder in a stable order
+    private static File[] listDocuments(File folder) {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        return files;
+    }
+
+    // Cheap fingerprint of the folder content used to detect a stale index
+    private static long fingerprint(File[] files) {
+        long hash = 17;
+        for (File file : files) {
+            hash = 31 * hash + file.getName().hashCode();
+            hash = 31 * hash + file.length();
+            hash = 31 * hash + file.lastModified();
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,20 @@
+package Registration_Discovery;
+
+// JMX view of a LatencyHistogram, times in milliseconds
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP95Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    void reset();
+}
@@ -0,0 +1,44 @@
+package Registration_Discovery;
+
+import java.util.Arrays;
+
+// Keeps the latencies of the most recent worker requests to answer percentile queries,
+// used to decide when a request has been waiting long enough to be hedged.
+class LatencyTracker {
+    private static final int RECOMPUTE_EVERY = 64; // Samples between two sorts of the window
+
+    private final long[] samples;
+    private int next;
+    private int count;
+    private int sinceSort;
+    private long[] sorted = new long[0];
+
+    LatencyTracker(int windowSize) {
+        this.samples = new long[windowSize];
+    }
+
+    synchronized void record(long latencyMillis) {
+        samples[next] = latencyMillis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        sinceSort++;
+    }
+
+    synchronized int getSampleCount() {
+        return count;
+    }
+
+    // Latency below which the given percentage of the recent requests completed, -1 without samples
+    synchronized long percentile(double percent) {
+        if (count == 0) {
+            return -1;
+        }
+        if (sorted.length != count || sinceSort >= RECOMPUTE_EVERY) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceSort = 0;
+        }
+        int index = (int) Math.ceil(percent / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,47 @@
+package Registration_Discovery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Read-only memory mapping of a whole file, split in chunks so files larger than 2 GB can be mapped.
+// Chunks overlap by a few bytes so that a primitive read never crosses a chunk boundary.
+class MappedFile {
+    private static final int CHUNK_SHIFT = 30; // 1 GB chunks
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final int OVERLAP = Long.BYTES;
+
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    MappedFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.length = channel.size();
+            int chunkCount = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            this.chunks = new MappedByteBuffer[Math.max(chunkCount, 1)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_SIZE;
+                long size = Math.min(length - start, CHUNK_SIZE + OVERLAP);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(size, 0));
+            }
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    byte get(long position) {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].get((int) (position & (CHUNK_SIZE - 1)));
+    }
+
+    int getInt(long position) {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getInt((int) (position & (CHUNK_SIZE - 1)));
+    }
+
+    long getLong(long position) {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & (CHUNK_SIZE - 1)));
+    }
+}
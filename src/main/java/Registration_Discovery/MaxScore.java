@@ -0,0 +1,124 @@
+package Registration_Discovery;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+// Top-K TF-IDF evaluation that skips the documents which cannot enter the top K (the MaxScore algorithm).
+// Every query term has an upper bound of its contribution to a score, its largest term frequency times its IDF.
+// Terms are sorted by bound, and once the K-th best score is known, the terms with the smallest bounds whose
+// bounds add up to less than it become non-essential: a document containing only those cannot make it, so only
+// the documents of the essential terms are candidates, and the other terms are only looked up for them,
+// stopping as soon as the score plus the bounds left stays below the K-th best score.
+// Returns exactly the documents of the exhaustive evaluation, with the same scores and the same ties.
+final class MaxScore {
+    // Relative slack of the comparisons of bounds with scores, against rounding differences in the sums
+    private static final double SLACK = 1e-9;
+
+    private MaxScore() {
+    }
+
+    // Add the best documents of the index for the query to the bounded min-heap, at most limit of them,
+    // kept with the same insertion rule as the exhaustive evaluation
+    static void collect(InvertedIndex index, String[] queryWords, double[] idf, int limit, PriorityQueue<DocumentTermsInfo> best) {
+        int termCount = queryWords.length;
+        TermCursor[] cursors = new TermCursor[termCount];
+        double[] upperBounds = new double[termCount];
+        Integer[] byBound = new Integer[termCount];
+        for (int i = 0; i < termCount; i++) {
+            cursors[i] = index.termCursor(queryWords[i]);
+            upperBounds[i] = Math.max(0, cursors[i].maxTermFrequency() * idf[i]);
+            byBound[i] = i;
+            cursors[i].nextDoc();
+        }
+        Arrays.sort(byBound, Comparator.comparingDouble(i -> upperBounds[i]));
+        int[] order = new int[termCount]; // Terms by increasing bound
+        double[] boundSums = new double[termCount + 1]; // boundSums[k]: sum of the bounds of the first k terms of order
+        for (int k = 0; k < termCount; k++) {
+            order[k] = byBound[k];
+            boundSums[k + 1] = boundSums[k] + upperBounds[order[k]];
+        }
+
+        int[] counts = new int[termCount];
+        int firstEssential = 0;
+        while (true) {
+            boolean full = best.size() == limit;
+            double threshold = full ? best.peek().getScore() : Double.NEGATIVE_INFINITY;
+            while (firstEssential < termCount && full && below(boundSums[firstEssential + 1], threshold)) {
+                firstEssential++;
+            }
+            if (firstEssential == termCount) {
+                return; // No document left can beat the K-th best one
+            }
+
+            int candidate = TermCursor.NO_MORE_DOCS;
+            for (int k = firstEssential; k < termCount; k++) {
+                candidate = Math.min(candidate, cursors[order[k]].docId());
+            }
+            if (candidate == TermCursor.NO_MORE_DOCS) {
+                return;
+            }
+
+            int documentLength = index.getDocumentLength(candidate);
+            Arrays.fill(counts, 0);
+            double score = 0;
+            for (int k = firstEssential; k < termCount; k++) {
+                int term = order[k];
+                if (cursors[term].docId() == candidate) {
+                    counts[term] = cursors[term].count();
+                    score += termFrequency(counts[term], documentLength) * idf[term];
+                }
+            }
+            boolean pruned = false;
+            for (int k = firstEssential - 1; k >= 0; k--) {
+                if (below(score + boundSums[k + 1], threshold)) {
+                    pruned = true;
+                    break;
+                }
+                int term = order[k];
+                if (cursors[term].advance(candidate) == candidate) {
+                    counts[term] = cursors[term].count();
+                    score += termFrequency(counts[term], documentLength) * idf[term];
+                }
+            }
+            if (!pruned) {
+                offer(index, queryWords, idf, limit, best, candidate, counts, documentLength);
+            }
+
+            for (int k = firstEssential; k < termCount; k++) {
+                if (cursors[order[k]].docId() == candidate) {
+                    cursors[order[k]].nextDoc();
+                }
+            }
+        }
+    }
+
+    // Score the document the way the exhaustive evaluation does, terms in query order, and keep it if it makes the top K
+    private static void offer(InvertedIndex index, String[] queryWords, double[] idf, int limit, PriorityQueue<DocumentTermsInfo> best,
+                              int docId, int[] counts, int documentLength) {
+        double[] tf = new double[queryWords.length];
+        double score = 0;
+        for (int i = 0; i < queryWords.length; i++) {
+            tf[i] = termFrequency(counts[i], documentLength);
+            score += tf[i] * idf[i];
+        }
+        if (best.size() == limit && score < best.peek().getScore()) {
+            return;
+        }
+        DocumentTermsInfo documentInfo = new DocumentTermsInfo(index.getDocumentName(docId), queryWords, tf);
+        documentInfo.setScore(score);
+        best.offer(documentInfo);
+        if (best.size() > limit) {
+            best.poll();
+        }
+    }
+
+    // Whether a score bound is certainly lower than the threshold, rounding aside
+    private static boolean below(double bound, double threshold) {
+        return bound < threshold - SLACK * Math.abs(threshold);
+    }
+
+    private static double termFrequency(int count, int documentLength) {
+        return documentLength != 0 ? (double) count / documentLength : 0.0;
+    }
+}
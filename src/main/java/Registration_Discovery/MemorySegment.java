@@ -0,0 +1,140 @@
+package Registration_Discovery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Segment kept on the heap, holding the documents added to the folder since the index was opened.
+// Built by SegmentWriter from a small batch of documents, it is searchable right away and never written to disk:
+// a restart rebuilds the persisted index from the folder.
+class MemorySegment implements Segment {
+    private final byte[][] terms; // Sorted in unsigned byte order
+    private final byte[][] postings; // Term -> encoded postings (see PostingsCursor)
+    private final byte[][] positions; // Term -> encoded positions
+    private final int[] documentFrequencies;
+    private final double[] maxTermFrequencies;
+    private final String[] documentNames;
+    private final int[] documentLengths;
+    private final Map<String, Integer> documentIds;
+    private final TermGramIndex grams;
+
+    MemorySegment(byte[][] terms, byte[][] postings, byte[][] positions, int[] documentFrequencies,
+                  double[] maxTermFrequencies, String[] documentNames, int[] documentLengths) {
+        this.terms = terms;
+        this.postings = postings;
+        this.positions = positions;
+        this.documentFrequencies = documentFrequencies;
+        this.maxTermFrequencies = maxTermFrequencies;
+        this.documentNames = documentNames;
+        this.documentLengths = documentLengths;
+        this.documentIds = new HashMap<>(documentNames.length * 2);
+        for (int docId = 0; docId < documentNames.length; docId++) {
+            documentIds.put(documentNames[docId], docId);
+        }
+        this.grams = new TermGramIndex(TermGramIndex.build(terms));
+    }
+
+    @Override
+    public int getDocumentCount() {
+        return documentNames.length;
+    }
+
+    @Override
+    public String getDocumentName(int docId) {
+        return documentNames[docId];
+    }
+
+    @Override
+    public int getDocumentLength(int docId) {
+        return documentLengths[docId];
+    }
+
+    @Override
+    public int findDocument(String documentName) {
+        return documentIds.getOrDefault(documentName, -1);
+    }
+
+    @Override
+    public int getTermCount() {
+        return terms.length;
+    }
+
+    @Override
+    public String getTerm(int termId) {
+        return new String(terms[termId], StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int copyTerm(int termId, byte[] buffer) {
+        byte[] term = terms[termId];
+        System.arraycopy(term, 0, buffer, 0, Math.min(term.length, buffer.length));
+        return term.length;
+    }
+
+    @Override
+    public int ceilingTerm(byte[] term) {
+        int low = 0;
+        int high = terms.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(terms[mid], term) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public int getDocumentFrequency(int termId) {
+        return documentFrequencies[termId];
+    }
+
+    @Override
+    public double getMaxTermFrequency(int termId) {
+        return maxTermFrequencies[termId];
+    }
+
+    @Override
+    public boolean termContains(int termId, byte[] pattern) {
+        byte[] term = terms[termId];
+        outer:
+        for (int i = 0; i <= term.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (term[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int[] candidateTerms(byte[] pattern) {
+        return grams.candidates(pattern);
+    }
+
+    @Override
+    public void addOccurrences(int termId, int[] counts, int docBase, int[] docMap) {
+        PostingsCursor cursor = new PostingsCursor().reset(postings[termId], documentFrequencies[termId]);
+        while (cursor.next()) {
+            int target = docMap == null ? docBase + cursor.docId() : docMap[cursor.docId()];
+            if (target >= 0) {
+                counts[target] += cursor.count();
+            }
+        }
+    }
+
+    @Override
+    public PostingsCursor postings(int termId, PostingsCursor cursor) {
+        return cursor.reset(postings[termId], documentFrequencies[termId]);
+    }
+
+    @Override
+    public PostingsCursor positions(int termId, PostingsCursor cursor) {
+        return postings(termId, cursor).withPositions(positions[termId]);
+    }
+}
@@ -0,0 +1,46 @@
+package Registration_Discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Latency histograms and counters of the Coordinator, Worker and leader stages, registered in the platform
+// MBean server as Registration_Discovery:type=Latency|Counter,name=<stage>. Connect with jconsole or any
+// JMX client, remotely with the usual -Dcom.sun.management.jmxremote.port=... options.
+// Stages look up their metric once, in a static field, and only touch it on the hot path.
+public final class Metrics {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    private static final String DOMAIN = "Registration_Discovery";
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> register("Latency", key, new LatencyHistogram()));
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> register("Counter", key, new Counter()));
+    }
+
+    private static <T> T register(String type, String name, T metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metric, objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not register metric {} in JMX: {}", name, e.getMessage());
+        }
+        return metric;
+    }
+}
@@ -0,0 +1,183 @@
+package Registration_Discovery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Aho-Corasick automaton that counts, in a single pass over the raw bytes of a document,
+// how many whitespace separated words contain each query term (case insensitive).
+// The word count matches String.split("\\s+") so the resulting term frequencies are
+// identical to the ones produced by splitting the document once per query term.
+// Phrase and proximity terms (see PhraseQuery) need word positions and fuzzy terms (see FuzzyQuery) whole
+// words: documents are also split into words for them, only when the query has some.
+public class MultiTermScanner {
+    private static final int ALPHABET = 256;
+
+    private final int termCount;
+    private final int[] transitions; // state * ALPHABET + byte -> next state
+    private final int[][] outputs; // state -> ids of the terms ending in that state (fail links merged)
+    private final boolean[] emptyTerms; // Terms that match every word
+    private final PhraseQuery[] phrases; // Term id -> phrase or proximity query, null for a single word
+    private final FuzzyQuery[] fuzzyWords; // Term id -> fuzzy query, null for other terms
+    private final boolean needsWords; // Some phrase or fuzzy term
+
+    public MultiTermScanner(List<String> terms) {
+        this.termCount = terms.size();
+        this.emptyTerms = new boolean[termCount];
+        this.phrases = new PhraseQuery[termCount];
+        this.fuzzyWords = new FuzzyQuery[termCount];
+        boolean anyWordTerm = false;
+
+        List<int[]> gotoTable = new ArrayList<>();
+        List<List<Integer>> stateOutputs = new ArrayList<>();
+        gotoTable.add(newState());
+        stateOutputs.add(new ArrayList<>());
+
+        // Build the trie of the lower-cased terms
+        for (int termId = 0; termId < termCount; termId++) {
+            fuzzyWords[termId] = FuzzyQuery.parse(terms.get(termId));
+            phrases[termId] = fuzzyWords[termId] == null ? PhraseQuery.parse(terms.get(termId)) : null;
+            if (phrases[termId] != null || fuzzyWords[termId] != null) {
+                anyWordTerm = true;
+                continue;
+            }
+            byte[] pattern = terms.get(termId).trim().toLowerCase().getBytes(StandardCharsets.UTF_8);
+            if (pattern.length == 0) {
+                emptyTerms[termId] = true;
+                continue;
+            }
+            int state = 0;
+            for (byte b : pattern) {
+                int c = b & 0xFF;
+                if (gotoTable.get(state)[c] < 0) {
+                    gotoTable.get(state)[c] = gotoTable.size();
+                    gotoTable.add(newState());
+                    stateOutputs.add(new ArrayList<>());
+                }
+                state = gotoTable.get(state)[c];
+            }
+            stateOutputs.get(state).add(termId);
+        }
+
+        this.needsWords = anyWordTerm;
+
+        // Breadth-first computation of the fail links, turning the trie into a full DFA
+        int stateCount = gotoTable.size();
+        int[] fail = new int[stateCount];
+        this.transitions = new int[stateCount * ALPHABET];
+        this.outputs = new int[stateCount][];
+
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int next = gotoTable.get(0)[c];
+            if (next < 0) {
+                transitions[c] = 0;
+            } else {
+                transitions[c] = next;
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        outputs[0] = toArray(stateOutputs.get(0));
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            List<Integer> merged = stateOutputs.get(state);
+            merged.addAll(stateOutputs.get(fail[state]));
+            outputs[state] = toArray(merged);
+
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = gotoTable.get(state)[c];
+                if (next < 0) {
+                    transitions[state * ALPHABET + c] = transitions[fail[state] * ALPHABET + c];
+                } else {
+                    transitions[state * ALPHABET + c] = next;
+                    fail[next] = transitions[fail[state] * ALPHABET + c];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    public int getTermCount() {
+        return termCount;
+    }
+
+    // Scan the document once, filling counts[termId] with the number of words containing the term.
+    // Returns the total number of words of the document.
+    public int scan(byte[] content, int[] counts) {
+        Arrays.fill(counts, 0, termCount, 0);
+        int[] lastWord = new int[termCount]; // Last word each term was counted in, to count a word only once
+        Arrays.fill(lastWord, -1);
+
+        int state = 0;
+        int words = 0; // Number of non-empty words seen so far
+        boolean inWord = false;
+
+        for (byte b : content) {
+            int c = b & 0xFF;
+            if (isWhitespace(c)) {
+                inWord = false;
+                state = 0;
+                continue;
+            }
+            if (!inWord) {
+                inWord = true;
+                words++;
+            }
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            state = transitions[state * ALPHABET + c];
+            for (int termId : outputs[state]) {
+                if (lastWord[termId] != words) {
+                    lastWord[termId] = words;
+                    counts[termId]++;
+                }
+            }
+        }
+
+        // String.split("\\s+") keeps a leading empty word and returns the whole input when nothing matches
+        int totalWords;
+        if (content.length == 0) {
+            totalWords = 1;
+        } else {
+            totalWords = words > 0 && isWhitespace(content[0] & 0xFF) ? words + 1 : words;
+        }
+
+        for (int termId = 0; termId < termCount; termId++) {
+            if (emptyTerms[termId]) {
+                counts[termId] = totalWords;
+            }
+        }
+        if (needsWords) {
+            String[] documentWords = new String(content).toLowerCase().split("\\s+");
+            for (int termId = 0; termId < termCount; termId++) {
+                if (phrases[termId] != null) {
+                    counts[termId] = phrases[termId].countIn(documentWords);
+                } else if (fuzzyWords[termId] != null) {
+                    counts[termId] = fuzzyWords[termId].countIn(documentWords);
+                }
+            }
+        }
+        return totalWords;
+    }
+
+    // Same characters as the \s regular expression class
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
@@ -1,21 +1,37 @@
 package Registration_Discovery;
 
 import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class OnElectionAction implements OnElectionCallback {
+    private static final Logger logger = LoggerFactory.getLogger(OnElectionAction.class);
+    // Time from reading a query of the WebServer to sending its final results back
+    private static final LatencyHistogram WEB_REQUEST_LATENCY = Metrics.histogram("leader.webRequest");
     private final ServiceRegistry serviceRegistry;
     private final int port;
+    private final String documentsPath; // Documents folder of the worker, null for the default one
     private ServerSocket serverSocket; // Declare ServerSocket as a class-level variable
+    private final ExecutorService queryExecutor = Executors.newCachedThreadPool(); // One thread per query in progress
 
     public OnElectionAction(ServiceRegistry serviceRegistry, int port) {
+        this(serviceRegistry, port, null);
+    }
+
+    // Nodes sharing a JVM need their own documents folder, worker.documentsPath only names one.
+    // Such a worker serves its own shard, named after its port.
+    public OnElectionAction(ServiceRegistry serviceRegistry, int port, String documentsPath) {
         this.serviceRegistry = serviceRegistry;
         this.port = port;
+        this.documentsPath = documentsPath;
     }
 
     @Override
@@ -36,8 +52,8 @@ public class OnElectionAction implements OnElectionCallback {
 
                     while (true) {
                         Socket clientSocket = serverSocket.accept(); // Accept incoming connection
-                        // Start a new thread to handle each request
-                        new Thread(() -> handleWebServerRequest(clientSocket, coordinator)).start();
+                        // Handle each request on its own thread, queries run concurrently in the Coordinator
+                        queryExecutor.execute(() -> handleWebServerRequest(clientSocket, coordinator));
                     }
                 } catch (IOException e) {
                     System.err.println("Error starting WebServer listener: " + e.getMessage());
@@ -54,15 +70,26 @@ public class OnElectionAction implements OnElectionCallback {
     }
 
     private void handleWebServerRequest(Socket clientSocket, Coordinator coordinator) {
+        long startNanos = System.nanoTime();
         try (ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream())) {
-            String query = (String) in.readObject(); // Read query from WebServer
-            System.out.println("Query received from WebServer: " + query);
-
-            // Process the query
-            coordinator.start(query);
+            // The WebServer sends a request id before the query, the results are sent back with it
+            Object header = in.readObject();
+            if (header instanceof Long) {
+                long requestId = (Long) header;
+                String query = (String) in.readObject(); // Read query from WebServer
+                boolean stream = (Boolean) in.readObject(); // The WebServer wants the partial rankings too
+                logger.debug("Query {} received from WebServer: {}", requestId, query);
 
-            // Optionally, send results back to Web Server
-            // coordinator.sendResultsToWebServer(coordinator.getResults());
+                // Process the query, the results are sent back to the Web Server
+                coordinator.start(query,
+                        (results, partial) -> coordinator.sendResultsToWebServer(requestId, results, true, partial),
+                        stream ? (results, partial) -> coordinator.sendResultsToWebServer(requestId, results, false, partial) : null);
+            } else {
+                String query = (String) header;
+                logger.debug("Query received from WebServer: {}", query);
+                coordinator.start(query);
+            }
+            WEB_REQUEST_LATENCY.recordSince(startNanos);
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error handling WebServer query: " + e.getMessage());
         } finally {
@@ -90,9 +117,12 @@ public class OnElectionAction implements OnElectionCallback {
         try {
             String ipAddress = InetAddress.getLocalHost().getHostAddress();
             String currentServerAddress = String.format("%s:%s", ipAddress, port);
-            serviceRegistry.registerToCluster(currentServerAddress);
+            Worker worker = documentsPath != null
+                    ? new Worker(port, String.valueOf(port), documentsPath)
+                    : new Worker(port);
+            // Publish the shard of the worker so the Coordinator queries one replica per shard
+            serviceRegistry.registerToCluster(new WorkerMetadata(currentServerAddress, worker.getShard()).toJson());
             String leaderAddress = serviceRegistry.getLeaderAddress();
-            Worker worker = new Worker(port);
             worker.start();
 
             if (leaderAddress != null) {
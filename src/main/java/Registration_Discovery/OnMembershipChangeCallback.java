@@ -0,0 +1,6 @@
+package Registration_Discovery;
+
+public interface OnMembershipChangeCallback {
+    void onWorkerAdded(String address);
+    void onWorkerRemoved(String address);
+}
@@ -0,0 +1,155 @@
+package Registration_Discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A query term matched on word positions instead of word counts:
+//   "distributed systems"        a phrase, its words must follow each other in the document
+//   distributed NEAR/3 systems   a proximity pair, the two words must be at most 3 words apart, in any order
+// Like a single query word, each word matches the document words containing it, case insensitive.
+// The matches of a document are the positions of its first word that start a phrase or have a word of the pair
+// close enough, and are used as the occurrence count of the term in TF-IDF.
+final class PhraseQuery {
+    private static final Pattern NEAR = Pattern.compile("NEAR/(\\d+)");
+    private static final Pattern NEAR_TERM = Pattern.compile("(\\S+) NEAR/(\\d+) (\\S+)");
+
+    private final String[] words; // Lower-cased
+    private final int maxDistance; // Proximity pair: largest distance between the two words, -1 for a phrase
+
+    private PhraseQuery(String[] words, int maxDistance) {
+        this.words = words;
+        this.maxDistance = maxDistance;
+    }
+
+    // Whether the query uses phrases or proximity operators, queries without them are split on whitespace
+    static boolean hasOperators(String query) {
+        return query.indexOf('"') >= 0 || NEAR.matcher(query).find();
+    }
+
+    // Split a query into its terms: quoted phrases, "a NEAR/k b" pairs and single words.
+    // An unterminated quote runs to the end of the query, a NEAR/k without a word on both sides is a word.
+    static String[] split(String query) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            if (Character.isWhitespace(query.charAt(i))) {
+                i++;
+            } else if (query.charAt(i) == '"') {
+                int end = query.indexOf('"', i + 1);
+                end = end < 0 ? query.length() : end;
+                String[] phraseWords = query.substring(i + 1, end).trim().split("\\s+");
+                tokens.add('"' + String.join(" ", phraseWords) + '"');
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"') {
+                    end++;
+                }
+                tokens.add(query.substring(i, end));
+                i = end;
+            }
+        }
+
+        List<String> terms = new ArrayList<>(tokens.size());
+        for (int t = 0; t < tokens.size(); t++) {
+            String token = tokens.get(t);
+            if (NEAR.matcher(token).matches() && !terms.isEmpty() && t + 1 < tokens.size()
+                    && isWord(terms.get(terms.size() - 1)) && isWord(tokens.get(t + 1))) {
+                String left = terms.remove(terms.size() - 1);
+                terms.add(left + " " + token + " " + tokens.get(++t));
+            } else {
+                terms.add(token);
+            }
+        }
+        return terms.toArray(new String[0]);
+    }
+
+    private static boolean isWord(String token) {
+        return !token.startsWith("\"") && !NEAR.matcher(token).matches() && !token.contains(" ");
+    }
+
+    // The phrase or proximity query of a query term, null for a single word
+    static PhraseQuery parse(String term) {
+        if (term.startsWith("\"")) {
+            String inner = term.substring(1, term.endsWith("\"") && term.length() > 1 ? term.length() - 1 : term.length()).trim();
+            return new PhraseQuery(inner.isEmpty() ? new String[0] : inner.toLowerCase().split("\\s+"), -1);
+        }
+        Matcher matcher = NEAR_TERM.matcher(term);
+        if (matcher.matches()) {
+            return new PhraseQuery(new String[]{matcher.group(1).toLowerCase(), matcher.group(3).toLowerCase()},
+                    Integer.parseInt(matcher.group(2)));
+        }
+        return null;
+    }
+
+    String[] getWords() {
+        return words;
+    }
+
+    // A proximity pair rather than a phrase
+    boolean isProximity() {
+        return maxDistance >= 0;
+    }
+
+    // Count the matches in a document split on whitespace and lower-cased, the way it is indexed.
+    // Used when the documents are scanned instead of read from the index.
+    int countIn(String[] documentWords) {
+        int[][] positions = new int[words.length][];
+        int[] from = new int[words.length];
+        int[] to = new int[words.length];
+        for (int j = 0; j < words.length; j++) {
+            IntList wordPositions = new IntList();
+            for (int position = 0; position < documentWords.length; position++) {
+                if (!documentWords[position].isEmpty() && documentWords[position].contains(words[j])) {
+                    wordPositions.add(position);
+                }
+            }
+            positions[j] = wordPositions.toArray();
+            to[j] = positions[j].length;
+        }
+        return countMatches(positions, from, to);
+    }
+
+    // Count the matches given the sorted positions of every word in one document,
+    // positions[j][from[j]] to positions[j][to[j] - 1] for word j
+    int countMatches(int[][] positions, int[] from, int[] to) {
+        if (words.length == 0) {
+            return 0;
+        }
+        int[] next = from.clone(); // Every list is walked once, the positions of the first word are increasing
+        int matches = 0;
+        for (int i = from[0]; i < to[0]; i++) {
+            int start = positions[0][i];
+            if (maxDistance < 0 ? followedByPhrase(start, positions, next, to) : hasNeighbour(start, positions[1], next, to[1])) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private boolean followedByPhrase(int start, int[][] positions, int[] next, int[] to) {
+        for (int j = 1; j < words.length; j++) {
+            while (next[j] < to[j] && positions[j][next[j]] < start + j) {
+                next[j]++;
+            }
+            if (next[j] == to[j] || positions[j][next[j]] != start + j) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasNeighbour(int position, int[] otherPositions, int[] next, int to) {
+        while (next[1] < to && otherPositions[next[1]] < position - maxDistance) {
+            next[1]++;
+        }
+        for (int k = next[1]; k < to && otherPositions[k] <= position + maxDistance; k++) {
+            if (otherPositions[k] != position) { // Both words matching the same document word is not a pair
+                return true;
+            }
+        }
+        return false;
+    }
+}
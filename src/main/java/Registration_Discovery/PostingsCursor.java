@@ -0,0 +1,286 @@
+package Registration_Discovery;
+
+import java.io.ByteArrayOutputStream;
+
+// Compressed postings list of a term and a reusable cursor to walk it.
+// Postings are (docId, count) pairs in increasing document order. Each pair is stored as the gap to the
+// previous document id followed by the count, both as variable-byte integers: 7 bits per byte, the high bit
+// set on every byte but the last. Most gaps and counts are small and fit in one byte instead of four.
+// The cursor decodes in place from a mapped file or a byte array without allocating per posting.
+// Lists longer than SKIP_INTERVAL postings start with a skip table: its length in bytes, then for every block of
+// SKIP_INTERVAL postings after the first one, the last document id before the block, the offset of the block
+// from the end of the table and the offset of its first positions, all as variable-byte gaps to the previous entry.
+// advance() follows it to jump over whole blocks instead of decoding them, which makes intersecting a long list
+// with a short one cheap, also when positions are read.
+// Positions are stored apart, in the same document order: for every posting, the positions of the term
+// in the document, each as the gap to the previous one, so queries that do not need them never read them.
+final class PostingsCursor {
+    static final int SKIP_INTERVAL = 64;
+
+    private MappedFile file;
+    private byte[] bytes;
+    private long position;
+    private int remaining;
+    private int documentFrequency;
+    private long postingsStart; // First posting, after the skip table
+    private long skipPosition; // Next skip entry
+    private int skipsRemaining; // Skip entries not read yet
+    private int skipBlock; // Block of the skip entry read last, 0 when it has been followed or passed
+    private int skipDocId; // Last document id before that block
+    private long skipOffset; // Offset of that block from postingsStart
+    private long skipPositionsOffset; // Offset of the positions of that block from positionsStart
+    private int docId;
+    private int count;
+    private boolean hasPositions;
+    private MappedFile positionsFile;
+    private byte[] positionsBytes;
+    private long positionsStart;
+    private long positionsPosition;
+    private int positionsRemaining; // Positions of the current posting not read yet
+    private int termPosition;
+
+    // Encode a [docId, count, ...] list with increasing document ids, given the count positions of every posting
+    // in order, whose encoded offsets go in the skip table
+    static byte[] encode(IntList postings, IntList positions) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(postings.size() + 16);
+        ByteArrayOutputStream skips = new ByteArrayOutputStream();
+        int previous = 0;
+        int previousSkipDocId = 0;
+        int previousSkipOffset = 0;
+        int positionsOffset = 0; // Size of the encoded positions of the postings so far
+        int previousSkipPositionsOffset = 0;
+        int nextPosition = 0;
+        for (int i = 0; i < postings.size(); i += 2) {
+            if (i > 0 && (i / 2) % SKIP_INTERVAL == 0) {
+                writeVInt(skips, previous - previousSkipDocId);
+                writeVInt(skips, out.size() - previousSkipOffset);
+                writeVInt(skips, positionsOffset - previousSkipPositionsOffset);
+                previousSkipDocId = previous;
+                previousSkipOffset = out.size();
+                previousSkipPositionsOffset = positionsOffset;
+            }
+            writeVInt(out, postings.get(i) - previous);
+            writeVInt(out, postings.get(i + 1));
+            previous = postings.get(i);
+            int previousPosition = 0;
+            for (int end = nextPosition + postings.get(i + 1); nextPosition < end; nextPosition++) {
+                positionsOffset += vIntLength(positions.get(nextPosition) - previousPosition);
+                previousPosition = positions.get(nextPosition);
+            }
+        }
+        if (postings.size() / 2 <= SKIP_INTERVAL) {
+            return out.toByteArray();
+        }
+        ByteArrayOutputStream list = new ByteArrayOutputStream(skips.size() + out.size() + 4);
+        writeVInt(list, skips.size());
+        list.writeBytes(skips.toByteArray());
+        list.writeBytes(out.toByteArray());
+        return list.toByteArray();
+    }
+
+    // Encode the positions of a [docId, count, ...] list, given as the count positions of every posting in order
+    static byte[] encodePositions(IntList postings, IntList positions) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(positions.size() + 16);
+        int next = 0;
+        for (int i = 1; i < postings.size(); i += 2) {
+            int previous = 0;
+            for (int end = next + postings.get(i); next < end; next++) {
+                writeVInt(out, positions.get(next) - previous);
+                previous = positions.get(next);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int vIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeVInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Position the cursor before the first posting of a list stored in a mapped file
+    PostingsCursor reset(MappedFile file, long position, int documentFrequency) {
+        this.file = file;
+        this.bytes = null;
+        this.position = position;
+        return start(documentFrequency);
+    }
+
+    // Position the cursor before the first posting of a list held in a byte array
+    PostingsCursor reset(byte[] bytes, int documentFrequency) {
+        this.file = null;
+        this.bytes = bytes;
+        this.position = 0;
+        return start(documentFrequency);
+    }
+
+    private PostingsCursor start(int documentFrequency) {
+        this.remaining = documentFrequency;
+        this.documentFrequency = documentFrequency;
+        this.docId = 0;
+        this.hasPositions = false;
+        this.skipBlock = 0;
+        this.skipDocId = 0;
+        this.skipOffset = 0;
+        this.skipPositionsOffset = 0;
+        if (documentFrequency > SKIP_INTERVAL) {
+            int skipLength = readVInt();
+            skipPosition = position;
+            position += skipLength;
+            skipsRemaining = (documentFrequency - 1) / SKIP_INTERVAL;
+        } else {
+            skipsRemaining = 0;
+        }
+        postingsStart = position;
+        return this;
+    }
+
+    // Also decode the positions of the list, stored in a mapped file. Call after reset.
+    PostingsCursor withPositions(MappedFile file, long position) {
+        this.positionsFile = file;
+        this.positionsBytes = null;
+        this.positionsStart = position;
+        this.positionsPosition = position;
+        this.positionsRemaining = 0;
+        this.hasPositions = true;
+        return this;
+    }
+
+    // Also decode the positions of the list, held in a byte array. Call after reset.
+    PostingsCursor withPositions(byte[] bytes) {
+        this.positionsFile = null;
+        this.positionsBytes = bytes;
+        this.positionsStart = 0;
+        this.positionsPosition = 0;
+        this.positionsRemaining = 0;
+        this.hasPositions = true;
+        return this;
+    }
+
+    // Move to the next posting, false when the list is exhausted
+    boolean next() {
+        if (remaining == 0) {
+            return false;
+        }
+        remaining--;
+        docId += readVInt();
+        count = readVInt();
+        if (hasPositions) {
+            while (positionsRemaining > 0) { // Skip the positions of the previous posting that were not read
+                if (readPositionByte() >= 0) {
+                    positionsRemaining--;
+                }
+            }
+            positionsRemaining = count;
+            termPosition = 0;
+        }
+        return true;
+    }
+
+    // Move to the first posting with a document id of at least target, false when the list is exhausted.
+    // Only valid once the cursor is on a posting. Whole blocks are skipped, with their positions.
+    boolean advance(int target) {
+        if (docId < target) {
+            skip(target);
+        }
+        while (docId < target) {
+            if (!next()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Jump to the last block starting before target and after the current posting, if any
+    private void skip(int target) {
+        while (true) {
+            if (skipBlock == 0) {
+                if (skipsRemaining == 0) {
+                    return;
+                }
+                long current = position;
+                position = skipPosition;
+                skipDocId += readVInt();
+                skipOffset += readVInt();
+                skipPositionsOffset += readVInt();
+                skipPosition = position;
+                position = current;
+                skipBlock = (documentFrequency - 1) / SKIP_INTERVAL - --skipsRemaining;
+            }
+            if (skipDocId >= target) {
+                return; // The target may be in the block before, keep the entry for a later target
+            }
+            int blockStart = skipBlock * SKIP_INTERVAL;
+            if (blockStart > documentFrequency - remaining) {
+                position = postingsStart + skipOffset;
+                docId = skipDocId;
+                remaining = documentFrequency - blockStart;
+                if (hasPositions) {
+                    positionsPosition = positionsStart + skipPositionsOffset;
+                    positionsRemaining = 0;
+                }
+            }
+            skipBlock = 0;
+        }
+    }
+
+    // Next position of the term in the current document, in increasing order. Only valid on a cursor
+    // with positions, at most count() times per posting.
+    int nextPosition() {
+        positionsRemaining--;
+        byte b = readPositionByte();
+        if (b >= 0) {
+            return termPosition += b;
+        }
+        int value = b & 0x7F;
+        int shift = 7;
+        do {
+            b = readPositionByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return termPosition += value;
+    }
+
+    int docId() {
+        return docId;
+    }
+
+    int count() {
+        return count;
+    }
+
+    private int readVInt() {
+        byte b = readByte();
+        if (b >= 0) {
+            return b; // Most gaps and counts fit in one byte
+        }
+        int value = b & 0x7F;
+        int shift = 7;
+        do {
+            b = readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private byte readByte() {
+        return bytes != null ? bytes[(int) position++] : file.get(position++);
+    }
+
+    private byte readPositionByte() {
+        return positionsBytes != null ? positionsBytes[(int) positionsPosition++] : positionsFile.get(positionsPosition++);
+    }
+}
@@ -0,0 +1,82 @@
+package Registration_Discovery;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// State of one query while the Coordinator runs it: the worker responses received so far, the
+// deadline after which missing workers are no longer waited for, the final ranking and where to send it.
+// Every query gets its own context so concurrent queries never share scores or locks.
+// An optional progress sink receives the merged ranking of the workers that answered so far,
+// it is never called once the final ranking was handed to the result sink.
+class QueryContext {
+    private final String query;
+    private final long deadlineNanos;
+    private final QueryResultSink resultSink;
+    private final QueryResultSink progressSink;
+    private final Map<String, ShardResult> shardResults = new ConcurrentHashMap<>();
+    private volatile Map<String, Double> documentScores = Collections.emptyMap();
+    private volatile boolean partial; // Some workers did not answer
+    private boolean completed; // Guarded by this
+
+    QueryContext(String query, long timeoutMillis, QueryResultSink resultSink) {
+        this(query, timeoutMillis, resultSink, null);
+    }
+
+    QueryContext(String query, long timeoutMillis, QueryResultSink resultSink,
+                 QueryResultSink progressSink) {
+        this.query = query;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.resultSink = resultSink;
+        this.progressSink = progressSink;
+    }
+
+    String getQuery() {
+        return query;
+    }
+
+    // Milliseconds left before the deadline, 0 once it passed
+    long remainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    void addShardResult(String workerAddress, ShardResult shardResult) {
+        shardResults.put(workerAddress, shardResult);
+    }
+
+    // Responses received so far, a worker answering later is not part of the copy
+    Map<String, ShardResult> getShardResults() {
+        return new HashMap<>(shardResults);
+    }
+
+    void markPartial() {
+        partial = true;
+    }
+
+    boolean isPartial() {
+        return partial;
+    }
+
+    boolean wantsProgress() {
+        return progressSink != null;
+    }
+
+    // Hand an intermediate ranking to the progress sink, the supplier only runs while the query is not completed
+    synchronized void publishProgress(Supplier<Map<String, Double>> ranking) {
+        if (progressSink != null && !completed) {
+            progressSink.accept(Collections.unmodifiableMap(ranking.get()), true);
+        }
+    }
+
+    // Store the final ranking of the query and hand it to the sink
+    synchronized void complete(Map<String, Double> documentScores) {
+        completed = true;
+        this.documentScores = Collections.unmodifiableMap(documentScores);
+        resultSink.accept(this.documentScores, partial);
+    }
+
+    Map<String, Double> getDocumentScores() {
+        return documentScores;
+    }
+}
@@ -0,0 +1,144 @@
+package Registration_Discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded cache of the ranked results of recent queries, keyed by the normalized query.
+// Entries are evicted in least recently used order once the cache is full and expire after a TTL.
+// The whole cache is dropped when a worker joins or leaves the cluster or reports a new index version,
+// since the rankings depend on the documents of every shard.
+class QueryResultCache implements OnMembershipChangeCallback {
+    private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    // Incremented on every invalidation so a query started before it cannot store a stale ranking
+    private long generation;
+
+    private static class Entry {
+        final Map<String, Double> results;
+        final long expiresAtMillis;
+
+        Entry(Map<String, Double> results, long expiresAtMillis) {
+            this.results = results;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    // A cache with no entries (maxEntries <= 0) stores nothing
+    QueryResultCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) { // Access order: the eldest entry is the least recently used
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > QueryResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    // Queries differing only in whitespace or in the case of their words share the same entry, and so do
+    // boolean queries with the same tree. Operators keep their case, they are only operators in upper case.
+    static String normalize(String query) {
+        if (BooleanQuery.hasOperators(query)) {
+            return BooleanQuery.parse(query).toString(QueryResultCache::lowerCaseWords);
+        }
+        String[] terms = Worker.splitQuery(query.trim());
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = lowerCaseWords(terms[i]);
+        }
+        return String.join(" ", terms);
+    }
+
+    // A query term with its words lower-cased, like the index matches them. The NEAR/k of a proximity pair
+    // stays upper case, inside a quoted phrase it is a word.
+    private static String lowerCaseWords(String term) {
+        if (!term.startsWith("\"") && term.contains(" ")) {
+            String[] pair = term.split(" ", 3); // word NEAR/k word
+            return pair[0].toLowerCase() + " " + pair[1] + " " + pair[2].toLowerCase();
+        }
+        return term.toLowerCase();
+    }
+
+    // Cached ranking of the query, null on a miss
+    synchronized Map<String, Double> get(String normalizedQuery) {
+        Entry entry = entries.get(normalizedQuery);
+        if (entry != null && entry.expiresAtMillis < System.currentTimeMillis()) {
+            entries.remove(normalizedQuery);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.results;
+    }
+
+    // Generation to pass to put() by a query about to run
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    // Store the ranking of a query, unless the cache was invalidated since the query started
+    synchronized void put(String normalizedQuery, Map<String, Double> results, long queryGeneration) {
+        if (maxEntries <= 0 || queryGeneration != generation) {
+            return;
+        }
+        entries.put(normalizedQuery, new Entry(results, System.currentTimeMillis() + ttlMillis));
+    }
+
+    synchronized void invalidateAll(String reason) {
+        generation++;
+        invalidations.incrementAndGet();
+        if (!entries.isEmpty()) {
+            logger.info("Query result cache invalidated ({}), {} entries dropped", reason, entries.size());
+            entries.clear();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryResultCache{size=%d, hits=%d, misses=%d, hitRatio=%.2f, invalidations=%d}",
+                size(), getHitCount(), getMissCount(), getHitRatio(), getInvalidationCount());
+    }
+
+    @Override
+    public void onWorkerAdded(String address) {
+        invalidateAll("worker " + address + " joined");
+    }
+
+    @Override
+    public void onWorkerRemoved(String address) {
+        invalidateAll("worker " + address + " left");
+    }
+}
@@ -0,0 +1,9 @@
+package Registration_Discovery;
+
+import java.util.Map;
+
+// Receives the ranked results of a query.
+// partial is true when some workers did not answer before their timeout or the query deadline.
+public interface QueryResultSink {
+    void accept(Map<String, Double> results, boolean partial);
+}
@@ -0,0 +1,55 @@
+package Registration_Discovery;
+
+import java.util.*;
+
+// The distinct words of a query interned to small ids, so scores and statistics can be accumulated
+// in primitive arrays indexed by term id instead of maps keyed by word.
+final class QueryTerms {
+    private final String[] terms;
+    private final Map<String, Integer> ids;
+
+    QueryTerms(Collection<String> words) {
+        this.terms = new LinkedHashSet<>(words).toArray(new String[0]);
+        this.ids = new HashMap<>(terms.length * 2);
+        for (int termId = 0; termId < terms.length; termId++) {
+            ids.put(terms[termId], termId);
+        }
+    }
+
+    static QueryTerms of(String query) {
+        return new QueryTerms(Arrays.asList(Worker.splitQuery(query)));
+    }
+
+    int size() {
+        return terms.length;
+    }
+
+    String get(int termId) {
+        return terms[termId];
+    }
+
+    // The terms as an array, shared by the documents of a result: callers must not modify it
+    String[] toArray() {
+        return terms;
+    }
+
+    List<String> toList() {
+        return Arrays.asList(terms);
+    }
+
+    // Id of a term, -1 when the query does not contain it
+    int idOf(String term) {
+        Integer termId = ids.get(term);
+        return termId != null ? termId : -1;
+    }
+
+    // Ids of the terms of a result in this query, -1 for terms the query does not contain.
+    // Documents of one result share their terms array, so callers compute this once per array.
+    int[] idsOf(String[] resultTerms) {
+        int[] termIds = new int[resultTerms.length];
+        for (int i = 0; i < resultTerms.length; i++) {
+            termIds[i] = idOf(resultTerms[i]);
+        }
+        return termIds;
+    }
+}
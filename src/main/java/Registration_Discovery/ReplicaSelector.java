@@ -0,0 +1,80 @@
+package Registration_Discovery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Chooses which replica of a shard answers a request: the one with the lowest expected wait,
+// estimated from its requests in flight and the moving average of its recent latencies.
+// A replica never measured counts as fast so new workers get traffic right away, and the average of a
+// replica that gets no traffic fades away so one slow sample does not keep it unused forever.
+class ReplicaSelector implements OnMembershipChangeCallback {
+    private static final double SMOOTHING = 0.2; // Weight of the newest sample in the moving average
+    private static final double HALF_LIFE_NANOS = 1e9; // An average not refreshed for a second counts half
+
+    private final WorkerConnectionPool connectionPool;
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+
+    // Moving average of the latencies of one replica and when it was last updated
+    private static class Latency {
+        final double averageMillis;
+        final long updatedNanos;
+
+        Latency(double averageMillis, long updatedNanos) {
+            this.averageMillis = averageMillis;
+            this.updatedNanos = updatedNanos;
+        }
+
+        double currentMillis(long nowNanos) {
+            return averageMillis * Math.pow(0.5, (nowNanos - updatedNanos) / HALF_LIFE_NANOS);
+        }
+    }
+
+    ReplicaSelector(WorkerConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    void recordLatency(String address, long latencyMillis) {
+        long nowNanos = System.nanoTime();
+        latencies.merge(address, new Latency(latencyMillis, nowNanos), (latency, sample) -> {
+            double average = latency.currentMillis(nowNanos);
+            return new Latency(average + SMOOTHING * (sample.averageMillis - average), nowNanos);
+        });
+    }
+
+    // Best replica of the list, null when it is empty
+    String choose(List<String> replicas) {
+        return choose(replicas, null);
+    }
+
+    // Best replica of the list other than the excluded one, the excluded one when it is the only replica
+    String choose(List<String> replicas, String excluded) {
+        String best = null;
+        double bestCost = Double.MAX_VALUE;
+        long nowNanos = System.nanoTime();
+        int offset = replicas.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(replicas.size()); // Spreads ties
+        for (int i = 0; i < replicas.size(); i++) {
+            String replica = replicas.get((offset + i) % replicas.size());
+            if (replica.equals(excluded)) {
+                continue;
+            }
+            Latency latency = latencies.get(replica);
+            double cost = (connectionPool.getInFlightCount(replica) + 1) * ((latency != null ? latency.currentMillis(nowNanos) : 0) + 1);
+            if (cost < bestCost) {
+                best = replica;
+                bestCost = cost;
+            }
+        }
+        return best != null ? best : excluded;
+    }
+
+    @Override
+    public void onWorkerAdded(String address) {
+    }
+
+    @Override
+    public void onWorkerRemoved(String address) {
+        latencies.remove(address);
+    }
+}
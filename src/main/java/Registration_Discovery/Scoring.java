@@ -0,0 +1,23 @@
+package Registration_Discovery;
+
+// TF-IDF formulas shared by the Workers, which rank their top-K documents, and the Coordinator,
+// which merges the rankings, so both sides always agree on the order of the documents.
+final class Scoring {
+    private Scoring() {
+    }
+
+    // Inverse Document Frequency (IDF): rare terms weigh more than terms found in every document
+    static double inverseDocumentFrequency(int documentFrequency, int totalDocuments) {
+        if (documentFrequency == 0 || totalDocuments == 0) {
+            return 0.0;
+        }
+        return Math.log((double) totalDocuments / documentFrequency);
+    }
+
+    // Weight of a query term in the scores, applied to its IDF: a fuzzy term (see FuzzyQuery) counts
+    // 1 / (1 + distance), so a misspelled query ranks the closest spellings first, other terms count 1
+    static double termWeight(String queryTerm) {
+        int distance = FuzzyQuery.distanceOf(queryTerm);
+        return distance > 0 ? 1.0 / (1 + distance) : 1.0;
+    }
+}
@@ -0,0 +1,49 @@
+package Registration_Discovery;
+
+// A read-only batch of indexed documents with its own term dictionary and postings.
+// Document ids are local to the segment, InvertedIndex maps them to the ids of the whole index.
+interface Segment {
+    int getDocumentCount();
+
+    String getDocumentName(int docId);
+
+    int getDocumentLength(int docId);
+
+    // Local id of the document with the given name, -1 if the segment does not hold it
+    int findDocument(String documentName);
+
+    int getTermCount();
+
+    // Text of a term of the dictionary
+    String getTerm(int termId);
+
+    // Copy the UTF-8 bytes of a term into the buffer, as many as fit, returns the length of the whole term
+    int copyTerm(int termId, byte[] buffer);
+
+    // Id of the first term greater than or equal to the given UTF-8 bytes in unsigned byte order,
+    // getTermCount() when there is none
+    int ceilingTerm(byte[] term);
+
+    // Number of documents of the segment holding the term, deleted ones included
+    int getDocumentFrequency(int termId);
+
+    // Largest frequency (occurrences / document length) of the term in a document of the segment
+    double getMaxTermFrequency(int termId);
+
+    // Whether the term contains the given UTF-8 bytes
+    boolean termContains(int termId, byte[] pattern);
+
+    // Ids of the terms that may contain the given UTF-8 bytes, in increasing order, from the trigram index
+    // of the dictionary (see TermGramIndex). Null when the pattern is too short for the index.
+    int[] candidateTerms(byte[] pattern);
+
+    // Add the occurrence count of every posting of the term to counts[docBase + docId],
+    // or to counts[docMap[docId]] when a map is given, skipping documents mapped to -1
+    void addOccurrences(int termId, int[] counts, int docBase, int[] docMap);
+
+    // Position a cursor on the postings of a term
+    PostingsCursor postings(int termId, PostingsCursor cursor);
+
+    // Position a cursor on the postings of a term, with their word positions
+    PostingsCursor positions(int termId, PostingsCursor cursor);
+}
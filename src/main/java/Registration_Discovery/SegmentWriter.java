@@ -0,0 +1,209 @@
+package Registration_Discovery;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Buffers the postings of a batch of documents in memory and writes them as one immutable segment.
+// A segment is made of six files that are later memory mapped by IndexSegment:
+//   <name>.tdict  sorted term dictionary (term bytes, postings and positions offsets, largest term frequency
+//                 in a document, document frequency)
+//   <name>.post   postings per term in document order, delta and variable-byte encoded (see PostingsCursor)
+//   <name>.pos    word positions of every posting, in the same order, for phrase and proximity queries
+//   <name>.norm   document lengths (total number of words per document)
+//   <name>.docs   document name table
+//   <name>.gram   trigram index of the term dictionary, for query words matching inside terms (see TermGramIndex)
+// InvertedIndex adds documents in name order, so the name table of a written segment is sorted.
+// The buffered documents can also be turned into a MemorySegment without touching the disk.
+class SegmentWriter {
+    static final int TERMS_MAGIC = 0x54444943; // "TDIC"
+    static final int POSTINGS_MAGIC = 0x504f5354; // "POST"
+    static final int POSITIONS_MAGIC = 0x504f5349; // "POSI"
+    static final int NORMS_MAGIC = 0x4e4f524d; // "NORM"
+    static final int DOCS_MAGIC = 0x444f4353; // "DOCS"
+    static final int GRAMS_MAGIC = 0x4752414d; // "GRAM"
+    static final int FORMAT_VERSION = 7; // 6 had no positions in skip tables, 5 no trigram index, 4 no skip tables, 3 no term frequency bounds, 2 no positions, 1 plain int postings
+
+    private final Map<String, TermBuffer> postings = new HashMap<>();
+    private final List<String> documentNames = new ArrayList<>();
+    private final IntList documentLengths = new IntList();
+    private long bufferedBytes; // Size of the text indexed since the last flush
+
+    // Buffered postings of a term
+    private static class TermBuffer {
+        final IntList postings = new IntList(); // [docId, count, ...]
+        final IntList positions = new IntList(); // The count positions of every posting
+        double maxTermFrequency; // Largest count / document length, bounds the score of the term (see MaxScore)
+    }
+
+    // Tokenize a document and add its term counts and positions to the buffered postings, returns its local id
+    int addDocument(String documentName, byte[] content) {
+        int docId = documentNames.size();
+        documentNames.add(documentName);
+
+        // Same tokenization as the scan path so that the document length and the word positions match
+        String[] words = new String(content).split("\\s+");
+        documentLengths.add(words.length);
+
+        Map<String, IntList> positions = new HashMap<>(); // Term -> positions in the document
+        for (int position = 0; position < words.length; position++) {
+            if (!words[position].isEmpty()) {
+                positions.computeIfAbsent(words[position].toLowerCase(), k -> new IntList(2)).add(position);
+            }
+        }
+        for (Map.Entry<String, IntList> entry : positions.entrySet()) {
+            TermBuffer buffer = postings.computeIfAbsent(entry.getKey(), k -> new TermBuffer());
+            IntList termPositions = entry.getValue();
+            buffer.postings.add(docId);
+            buffer.postings.add(termPositions.size());
+            buffer.maxTermFrequency = Math.max(buffer.maxTermFrequency, termPositions.size() / (double) words.length);
+            for (int i = 0; i < termPositions.size(); i++) {
+                buffer.positions.add(termPositions.get(i));
+            }
+        }
+
+        bufferedBytes += content.length;
+        return docId;
+    }
+
+    int getDocumentCount() {
+        return documentNames.size();
+    }
+
+    long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    // Terms with their postings, sorted in byte order so the dictionary can be binary searched
+    private List<Map.Entry<byte[], TermBuffer>> sortedPostings() {
+        List<Map.Entry<byte[], TermBuffer>> sorted = new ArrayList<>(postings.size());
+        for (Map.Entry<String, TermBuffer> entry : postings.entrySet()) {
+            sorted.add(new AbstractMap.SimpleEntry<>(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        }
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+        return sorted;
+    }
+
+    // The buffered documents as a segment on the heap
+    MemorySegment toMemorySegment() {
+        List<Map.Entry<byte[], TermBuffer>> sorted = sortedPostings();
+        byte[][] terms = new byte[sorted.size()][];
+        byte[][] termPostings = new byte[sorted.size()][];
+        byte[][] termPositions = new byte[sorted.size()][];
+        int[] documentFrequencies = new int[sorted.size()];
+        double[] maxTermFrequencies = new double[sorted.size()];
+        for (int termId = 0; termId < terms.length; termId++) {
+            TermBuffer buffer = sorted.get(termId).getValue();
+            maxTermFrequencies[termId] = buffer.maxTermFrequency;
+            terms[termId] = sorted.get(termId).getKey();
+            termPostings[termId] = PostingsCursor.encode(buffer.postings, buffer.positions);
+            termPositions[termId] = PostingsCursor.encodePositions(buffer.postings, buffer.positions);
+            documentFrequencies[termId] = buffer.postings.size() / 2;
+        }
+        return new MemorySegment(terms, termPostings, termPositions, documentFrequencies, maxTermFrequencies,
+                documentNames.toArray(new String[0]), documentLengths.toArray());
+    }
+
+    // Write the buffered documents as segment files in the given directory
+    void write(File directory, String segmentName) throws IOException {
+        List<Map.Entry<byte[], TermBuffer>> sorted = sortedPostings();
+        byte[][] terms = new byte[sorted.size()][];
+        for (int termId = 0; termId < terms.length; termId++) {
+            terms[termId] = sorted.get(termId).getKey();
+        }
+
+        long[] postingsOffsets = new long[terms.length];
+        long[] positionsOffsets = new long[terms.length];
+        int[] documentFrequencies = new int[terms.length];
+
+        try (DataOutputStream out = open(directory, segmentName + ".post")) {
+            out.writeInt(POSTINGS_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            long offset = 2 * Integer.BYTES;
+            for (int termId = 0; termId < terms.length; termId++) {
+                TermBuffer buffer = sorted.get(termId).getValue();
+                postingsOffsets[termId] = offset;
+                documentFrequencies[termId] = buffer.postings.size() / 2;
+                byte[] encoded = PostingsCursor.encode(buffer.postings, buffer.positions);
+                out.write(encoded);
+                offset += encoded.length;
+            }
+        }
+
+        try (DataOutputStream out = open(directory, segmentName + ".pos")) {
+            out.writeInt(POSITIONS_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            long offset = 2 * Integer.BYTES;
+            for (int termId = 0; termId < terms.length; termId++) {
+                TermBuffer buffer = sorted.get(termId).getValue();
+                positionsOffsets[termId] = offset;
+                byte[] encoded = PostingsCursor.encodePositions(buffer.postings, buffer.positions);
+                out.write(encoded);
+                offset += encoded.length;
+            }
+        }
+
+        try (DataOutputStream out = open(directory, segmentName + ".tdict")) {
+            out.writeInt(TERMS_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(terms.length);
+            int termOffset = 0;
+            for (byte[] term : terms) {
+                out.writeInt(termOffset);
+                termOffset += term.length;
+            }
+            out.writeInt(termOffset);
+            for (long postingsOffset : postingsOffsets) {
+                out.writeLong(postingsOffset);
+            }
+            for (long positionsOffset : positionsOffsets) {
+                out.writeLong(positionsOffset);
+            }
+            for (Map.Entry<byte[], TermBuffer> entry : sorted) {
+                out.writeDouble(entry.getValue().maxTermFrequency);
+            }
+            for (int documentFrequency : documentFrequencies) {
+                out.writeInt(documentFrequency);
+            }
+            for (byte[] term : terms) {
+                out.write(term);
+            }
+        }
+
+        try (DataOutputStream out = open(directory, segmentName + ".gram")) {
+            out.writeInt(GRAMS_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            TermGramIndex.write(out, TermGramIndex.build(terms));
+        }
+
+        try (DataOutputStream out = open(directory, segmentName + ".norm")) {
+            out.writeInt(NORMS_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(documentLengths.size());
+            for (int docId = 0; docId < documentLengths.size(); docId++) {
+                out.writeInt(documentLengths.get(docId));
+            }
+        }
+
+        try (DataOutputStream out = open(directory, segmentName + ".docs")) {
+            out.writeInt(DOCS_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(documentNames.size());
+            byte[][] names = new byte[documentNames.size()][];
+            int nameOffset = 0;
+            for (int docId = 0; docId < names.length; docId++) {
+                names[docId] = documentNames.get(docId).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(nameOffset);
+                nameOffset += names[docId].length;
+            }
+            out.writeInt(nameOffset);
+            for (byte[] name : names) {
+                out.write(name);
+            }
+        }
+    }
+
+    private static DataOutputStream open(File directory, String fileName) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, fileName)), 1 << 16));
+    }
+}
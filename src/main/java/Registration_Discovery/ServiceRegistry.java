@@ -8,9 +8,8 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class ServiceRegistry implements Watcher {
     private static final Logger logger = LoggerFactory.getLogger(ServiceRegistry.class);
@@ -18,7 +17,9 @@ public class ServiceRegistry implements Watcher {
     private static final String COORDINATOR_ZNODE = "/coordinator";
     private final ZooKeeper zooKeeper;
     private String currentZnode = null;
-    private static List<String> allServiceAddresses = null;
+    private volatile List<String> allServiceAddresses = null; // Per registry, so every registry of a JVM detects its own membership changes
+    private volatile Map<String, List<String>> replicasByShard = Collections.emptyMap(); // Shard -> addresses of the workers serving it
+    private final List<OnMembershipChangeCallback> membershipCallbacks = new CopyOnWriteArrayList<>();
 
     public ServiceRegistry(ZooKeeper zooKeeper) {
         this.zooKeeper = zooKeeper;
@@ -89,6 +90,11 @@ public class ServiceRegistry implements Watcher {
         }
     }
 
+    // Be notified when workers join or leave the cluster
+    public void addMembershipCallback(OnMembershipChangeCallback callback) {
+        membershipCallbacks.add(callback);
+    }
+
     public void registerForUpdates() {
         try {
             updateAddresses();
@@ -103,6 +109,7 @@ public class ServiceRegistry implements Watcher {
         List<String> workerZnodes = zooKeeper.getChildren(REGISTRY_ZNODE, this);
 
         List<String> addresses = new ArrayList<>(workerZnodes.size());
+        Map<String, List<String>> shards = new TreeMap<>();
 
         for (String workerZnode : workerZnodes) {
             String workerFullPath = REGISTRY_ZNODE + "/" + workerZnode;
@@ -111,9 +118,10 @@ public class ServiceRegistry implements Watcher {
                 continue;
             }
 
-            byte[] addressBytes = zooKeeper.getData(workerFullPath, false, stat);
-            String address = new String(addressBytes);
-            addresses.add(address);
+            byte[] metadataBytes = zooKeeper.getData(workerFullPath, false, stat);
+            WorkerMetadata metadata = WorkerMetadata.parse(new String(metadataBytes));
+            addresses.add(metadata.getAddress());
+            shards.computeIfAbsent(metadata.getShard(), shard -> new ArrayList<>()).add(metadata.getAddress());
         }
 
         List<String> newAddresses = new ArrayList<>(addresses);
@@ -121,14 +129,21 @@ public class ServiceRegistry implements Watcher {
         newAddresses.removeAll(oldAddresses);
         oldAddresses.removeAll(addresses);
 
+        this.replicasByShard = Collections.unmodifiableMap(shards);
         this.allServiceAddresses = Collections.unmodifiableList(addresses);
-        logger.info("Updated service addresses: {}", this.allServiceAddresses);
+        logger.info("Updated service addresses: {}, shards: {}", this.allServiceAddresses, this.replicasByShard);
 
         for (String newAddress : newAddresses) {
             logger.info("New worker detected: {}", newAddress);
+            for (OnMembershipChangeCallback callback : membershipCallbacks) {
+                callback.onWorkerAdded(newAddress);
+            }
         }
         for (String oldAddress : oldAddresses) {
             logger.info("Removed worker: {}", oldAddress);
+            for (OnMembershipChangeCallback callback : membershipCallbacks) {
+                callback.onWorkerRemoved(oldAddress);
+            }
         }
 
 
@@ -139,10 +154,15 @@ public class ServiceRegistry implements Watcher {
             System.out.println("Total workers: " + this.allServiceAddresses.size());
         }
     }
-    public static List<String> getWorkerAddresses() {
+    public List<String> getWorkerAddresses() {
         return allServiceAddresses != null ? allServiceAddresses : Collections.emptyList();
     }
 
+    // Addresses of the workers serving each shard, a query needs one of them per shard
+    public Map<String, List<String>> getReplicasByShard() {
+        return replicasByShard;
+    }
+
     public List<String> getRegisteredServices() {
         return allServiceAddresses;
     }
@@ -0,0 +1,55 @@
+package Registration_Discovery;
+
+import java.util.List;
+import java.util.Map;
+
+// Results of one Worker for a query: the matching documents it returned plus the statistics of
+// its whole shard, which the Coordinator needs to compute IDF values when only the top-K
+// documents are shipped. A statistics-only answer has no documents.
+class ShardResult implements java.io.Serializable {
+    private final long indexVersion; // Changes whenever the documents of the shard change
+    private final long indexGeneration; // Increases whenever the index version changes, 0 when unknown
+    private final int documentCount; // Number of documents in the shard
+    private final Map<String, Integer> documentFrequency; // Query word -> documents of the shard containing it
+    private final List<DocumentTermsInfo> documents;
+
+    public ShardResult(long indexVersion, long indexGeneration, int documentCount, Map<String, Integer> documentFrequency,
+                       List<DocumentTermsInfo> documents) {
+        this.indexVersion = indexVersion;
+        this.indexGeneration = indexGeneration;
+        this.documentCount = documentCount;
+        this.documentFrequency = documentFrequency;
+        this.documents = documents;
+    }
+
+    public long getIndexVersion() {
+        return indexVersion;
+    }
+
+    public long getIndexGeneration() {
+        return indexGeneration;
+    }
+
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    public Map<String, Integer> getDocumentFrequency() {
+        return documentFrequency;
+    }
+
+    public List<DocumentTermsInfo> getDocuments() {
+        return documents;
+    }
+
+    @Override
+    public String toString() {
+        return "ShardResult{" +
+                "indexVersion=" + indexVersion +
+                ", indexGeneration=" + indexGeneration +
+                ", documentCount=" + documentCount +
+                ", documentFrequency=" + documentFrequency +
+                ", documents=" + documents +
+                '}';
+    }
+}
@@ -0,0 +1,61 @@
+package Registration_Discovery;
+
+// Walks the documents of an index snapshot where a query term occurs, in increasing document id order,
+// with the number of occurrences of the term in the current document. A fresh cursor is before the first
+// document: call nextDoc() or advance() to position it.
+// Used by the document-at-a-time evaluation of top-K queries (see MaxScore).
+abstract class TermCursor {
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    // Current document id, -1 before the first call and NO_MORE_DOCS once exhausted
+    abstract int docId();
+
+    // Occurrences of the term in the current document
+    abstract int count();
+
+    // Move to the next document, returns its id or NO_MORE_DOCS
+    int nextDoc() {
+        return advance(docId() + 1);
+    }
+
+    // Move to the first document with an id of at least target, returns its id or NO_MORE_DOCS
+    abstract int advance(int target);
+
+    // Upper bound of the term frequency (occurrences / document length) of the term in any document
+    abstract double maxTermFrequency();
+
+    // Cursor over the non-zero entries of an array of counts indexed by document id
+    static TermCursor of(int[] counts, double maxTermFrequency) {
+        return new TermCursor() {
+            private int docId = -1;
+
+            @Override
+            int docId() {
+                return docId;
+            }
+
+            @Override
+            int count() {
+                return counts[docId];
+            }
+
+            @Override
+            int advance(int target) {
+                if (docId >= target) {
+                    return docId;
+                }
+                for (int id = target; id < counts.length; id++) {
+                    if (counts[id] > 0) {
+                        return docId = id;
+                    }
+                }
+                return docId = NO_MORE_DOCS;
+            }
+
+            @Override
+            double maxTermFrequency() {
+                return maxTermFrequency;
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+package Registration_Discovery;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Trigram index over the term dictionary of a segment, so that the terms containing a query word are found
+// without comparing the word with every term. Every distinct sequence of three bytes of a term (a trigram)
+// lists the ids of the terms containing it. A term contains a word only if it contains all of its trigrams,
+// so intersecting their lists gives a few candidates, which are then checked with termContains.
+// Words shorter than a trigram match a large part of the dictionary anyway and are left to a scan.
+// Layout, as ints: the trigram count, the sorted trigrams, the start of the term list of every trigram
+// plus the end of the last one, then the term lists in increasing term id order. SegmentWriter writes it
+// to <name>.gram and IndexSegment maps it, MemorySegment keeps it in an array.
+final class TermGramIndex {
+    static final int GRAM_LENGTH = 3;
+
+    private final int[] values; // The layout on the heap, or null when mapped
+    private final MappedFile file;
+    private final long start; // Offset of the layout in the mapped file
+    private final int gramCount;
+
+    TermGramIndex(int[] values) {
+        this.values = values;
+        this.file = null;
+        this.start = 0;
+        this.gramCount = values[0];
+    }
+
+    TermGramIndex(MappedFile file, long start) {
+        this.values = null;
+        this.file = file;
+        this.start = start;
+        this.gramCount = file.getInt(start);
+    }
+
+    // Build the layout for a sorted dictionary
+    static int[] build(byte[][] terms) {
+        Map<Integer, IntList> termsByGram = new HashMap<>();
+        for (int termId = 0; termId < terms.length; termId++) {
+            int previous = -1;
+            int[] grams = grams(terms[termId]);
+            Arrays.sort(grams);
+            for (int gram : grams) {
+                if (gram != previous) { // Each term once per trigram, term ids increase
+                    termsByGram.computeIfAbsent(gram, k -> new IntList(4)).add(termId);
+                    previous = gram;
+                }
+            }
+        }
+
+        int[] sortedGrams = new int[termsByGram.size()];
+        int i = 0;
+        int totalTerms = 0;
+        for (Map.Entry<Integer, IntList> entry : termsByGram.entrySet()) {
+            sortedGrams[i++] = entry.getKey();
+            totalTerms += entry.getValue().size();
+        }
+        Arrays.sort(sortedGrams);
+
+        int[] values = new int[1 + 2 * sortedGrams.length + 1 + totalTerms];
+        values[0] = sortedGrams.length;
+        int listsStart = 2 + 2 * sortedGrams.length;
+        int next = listsStart;
+        for (int g = 0; g < sortedGrams.length; g++) {
+            IntList termIds = termsByGram.get(sortedGrams[g]);
+            values[1 + g] = sortedGrams[g];
+            values[1 + sortedGrams.length + g] = next - listsStart;
+            for (int j = 0; j < termIds.size(); j++) {
+                values[next++] = termIds.get(j);
+            }
+        }
+        values[1 + 2 * sortedGrams.length] = next - listsStart;
+        return values;
+    }
+
+    static void write(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    // The trigrams of a byte sequence, each as an int, in order and with repetitions
+    private static int[] grams(byte[] bytes) {
+        int[] grams = new int[Math.max(bytes.length - GRAM_LENGTH + 1, 0)];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+        }
+        return grams;
+    }
+
+    // Ids of the terms containing every trigram of the pattern, in increasing order: a superset of the terms
+    // containing the pattern. Null when the pattern is shorter than a trigram.
+    int[] candidates(byte[] pattern) {
+        int[] grams = grams(pattern);
+        if (grams.length == 0) {
+            return null;
+        }
+        Arrays.sort(grams);
+
+        // Term lists of the distinct trigrams, the shortest one first
+        int[] listStarts = new int[grams.length];
+        int[] listEnds = new int[grams.length];
+        int lists = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (i > 0 && grams[i] == grams[i - 1]) {
+                continue;
+            }
+            int g = findGram(grams[i]);
+            if (g < 0) {
+                return new int[0]; // No term contains this trigram
+            }
+            listStarts[lists] = get(1 + gramCount + g);
+            listEnds[lists] = get(1 + gramCount + g + 1);
+            lists++;
+        }
+        Integer[] order = new Integer[lists];
+        for (int i = 0; i < lists; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(listEnds[a] - listStarts[a], listEnds[b] - listStarts[b]));
+
+        int listsStart = 2 + 2 * gramCount;
+        IntList candidates = new IntList(listEnds[order[0]] - listStarts[order[0]]);
+        for (int i = listStarts[order[0]]; i < listEnds[order[0]]; i++) {
+            candidates.add(get(listsStart + i));
+        }
+        for (int k = 1; k < lists && candidates.size() > 0; k++) {
+            candidates = intersect(candidates, listsStart + listStarts[order[k]], listsStart + listEnds[order[k]]);
+        }
+        return candidates.toArray();
+    }
+
+    // Keep the candidates found in the sorted list values[from, to), galloping through the list since
+    // it is usually much longer than the candidates
+    private IntList intersect(IntList candidates, int from, int to) {
+        IntList kept = new IntList(candidates.size());
+        int position = from;
+        for (int i = 0; i < candidates.size() && position < to; i++) {
+            int termId = candidates.get(i);
+            int step = 1;
+            int low = position;
+            while (position < to && get(position) < termId) {
+                low = position + 1;
+                position += step;
+                step <<= 1;
+            }
+            int high = Math.min(position, to - 1);
+            while (low <= high) { // First position holding termId or more, between low and high
+                int mid = (low + high) >>> 1;
+                if (get(mid) < termId) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            position = low;
+            if (position < to && get(position) == termId) {
+                kept.add(termId);
+                position++;
+            }
+        }
+        return kept;
+    }
+
+    private int findGram(int gram) {
+        int low = 0;
+        int high = gramCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = get(1 + mid);
+            if (value < gram) {
+                low = mid + 1;
+            } else if (value > gram) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int get(int index) {
+        return values != null ? values[index] : file.getInt(start + (long) index * Integer.BYTES);
+    }
+}
@@ -0,0 +1,320 @@
+package Registration_Discovery;
+
+import java.io.*;
+import java.util.*;
+
+// Length-prefixed binary protocol used between the Coordinator and the Workers.
+//
+// Every message is a frame:
+//   int  length     number of bytes following this field
+//   byte version    VERSION
+//   byte type       one of the message types below
+//   int  requestId  chosen by the Coordinator, echoed back by the Worker
+//   ...  payload
+//
+// A search response interns the query terms once in a term table and sends the term
+// frequencies of every document as a primitive array indexed by term id, the same layout
+// DocumentTermsInfo uses in memory.
+// Search and top-K requests carry the query as a BooleanQuery tree with its term table, parsed once by the Coordinator.
+// Java object serialization is still accepted by the Worker: such streams start with the
+// 0xACED magic, which can never be the first bytes of a valid frame length.
+final class WireProtocol {
+    static final byte VERSION = 4;
+
+    static final byte SEARCH_REQUEST = 1;
+    static final byte SEARCH_RESPONSE = 2;
+    static final byte ERROR = 3;
+    static final byte PING = 4; // Health check of a pooled connection, answered with an empty PONG
+    static final byte PONG = 5;
+    static final byte TOP_K_REQUEST = 6; // Only the K best matching documents plus the shard statistics
+    static final byte TOP_K_RESPONSE = 7;
+    static final byte STATS_REQUEST = 8; // Shard statistics of some query words, no documents
+    static final byte STATS_RESPONSE = 9;
+
+    private static final int HEADER_LENGTH = 2 + Integer.BYTES; // version, type, requestId
+    private static final int MAX_FRAME_LENGTH = 256 << 20;
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    private WireProtocol() {
+    }
+
+    // A decoded frame
+    static class Frame {
+        final byte type;
+        final int requestId;
+        final byte[] payload;
+
+        Frame(byte type, int requestId, byte[] payload) {
+            this.type = type;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+
+    // Peek at the first bytes of a stream to know if the peer speaks Java object serialization
+    static boolean isJavaSerialization(BufferedInputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first < 0 || second < 0) {
+            throw new EOFException();
+        }
+        return ((first << 8) | second) == JAVA_SERIALIZATION_MAGIC;
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, int requestId, byte[] payload) throws IOException {
+        out.writeInt(HEADER_LENGTH + payload.length);
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeInt(requestId);
+        out.write(payload);
+        out.flush();
+    }
+
+    // Read the next frame, throws EOFException when the peer closed the connection
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+        byte type = in.readByte();
+        int requestId = in.readInt();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(type, requestId, payload);
+    }
+
+    static byte[] encodeSearchRequest(BooleanQuery query) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        query.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    static BooleanQuery decodeSearchRequest(byte[] payload) throws IOException {
+        return BooleanQuery.read(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    // The global statistics are optional: a negative total makes the Worker use its own shard statistics
+    static byte[] encodeTopKRequest(BooleanQuery query, int topK, int totalDocuments, Map<String, Integer> documentFrequency) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        query.write(out);
+        out.writeInt(topK);
+        out.writeInt(totalDocuments);
+        writeDocumentFrequency(out, documentFrequency);
+        return bytes.toByteArray();
+    }
+
+    // A decoded top-K request
+    static class TopKRequest {
+        final BooleanQuery query;
+        final int topK;
+        final int totalDocuments; // Documents in the whole cluster, negative when not known
+        final Map<String, Integer> documentFrequency; // Query word -> documents containing it in the whole cluster
+
+        TopKRequest(BooleanQuery query, int topK, int totalDocuments, Map<String, Integer> documentFrequency) {
+            this.query = query;
+            this.topK = topK;
+            this.totalDocuments = totalDocuments;
+            this.documentFrequency = documentFrequency;
+        }
+    }
+
+    static TopKRequest decodeTopKRequest(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        return new TopKRequest(BooleanQuery.read(in), in.readInt(), in.readInt(), readDocumentFrequency(in));
+    }
+
+    static byte[] encodeStatsRequest(Collection<String> words) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(words.size());
+        for (String word : words) {
+            out.writeUTF(word);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<String> decodeStatsRequest(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int wordCount = in.readInt();
+        List<String> words = new ArrayList<>(wordCount);
+        for (int i = 0; i < wordCount; i++) {
+            words.add(in.readUTF());
+        }
+        return words;
+    }
+
+    // Same layout as a top-K response without documents
+    static byte[] encodeStatsResponse(ShardResult shardStatistics) throws IOException {
+        return encodeTopKResponse(shardStatistics);
+    }
+
+    static ShardResult decodeStatsResponse(byte[] payload) throws IOException {
+        return decodeTopKResponse(payload);
+    }
+
+    // Shard statistics first (index version and generation, document count and the document frequency of every term),
+    // then the ranked documents with their score and the frequency of every term
+    static byte[] encodeTopKResponse(ShardResult shardResult) throws IOException {
+        String[] terms = shardResult.getDocumentFrequency().keySet().toArray(new String[0]);
+        List<DocumentTermsInfo> documents = shardResult.getDocuments();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + documents.size() * (24 + terms.length * Double.BYTES));
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(shardResult.getIndexVersion());
+        out.writeLong(shardResult.getIndexGeneration());
+        out.writeInt(shardResult.getDocumentCount());
+        out.writeInt(terms.length);
+        for (String term : terms) {
+            out.writeUTF(term);
+            out.writeInt(shardResult.getDocumentFrequency().get(term));
+        }
+
+        out.writeInt(documents.size());
+        TermPositions positions = new TermPositions(terms);
+        for (DocumentTermsInfo docInfo : documents) {
+            out.writeUTF(docInfo.getDocumentName());
+            out.writeDouble(docInfo.getScore());
+            positions.writeFrequencies(out, docInfo);
+        }
+        return bytes.toByteArray();
+    }
+
+    static ShardResult decodeTopKResponse(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        long indexVersion = in.readLong();
+        long indexGeneration = in.readLong();
+        int documentCount = in.readInt();
+        String[] terms = new String[in.readInt()];
+        Map<String, Integer> documentFrequency = new HashMap<>();
+        for (int termId = 0; termId < terms.length; termId++) {
+            terms[termId] = in.readUTF();
+            documentFrequency.put(terms[termId], in.readInt());
+        }
+
+        int resultCount = in.readInt();
+        List<DocumentTermsInfo> documents = new ArrayList<>(resultCount);
+        for (int i = 0; i < resultCount; i++) {
+            String documentName = in.readUTF();
+            double score = in.readDouble();
+            DocumentTermsInfo docInfo = new DocumentTermsInfo(documentName, terms, readFrequencies(in, terms.length));
+            docInfo.setScore(score);
+            documents.add(docInfo);
+        }
+        return new ShardResult(indexVersion, indexGeneration, documentCount, documentFrequency, documents);
+    }
+
+    private static double[] readFrequencies(DataInputStream in, int termCount) throws IOException {
+        double[] frequencies = new double[termCount];
+        for (int termId = 0; termId < termCount; termId++) {
+            frequencies[termId] = in.readDouble(); // NaN marks a term absent from the result
+        }
+        return frequencies;
+    }
+
+    // Writes the frequencies of documents in the order of a term table. Documents of one result share
+    // their terms array, so the position of every table term in it is only looked up when the array changes.
+    private static class TermPositions {
+        private final String[] table;
+        private String[] terms;
+        private int[] positions;
+
+        TermPositions(String[] table) {
+            this.table = table;
+        }
+
+        void writeFrequencies(DataOutputStream out, DocumentTermsInfo docInfo) throws IOException {
+            if (docInfo.getTerms() != terms) {
+                terms = docInfo.getTerms();
+                positions = new int[table.length];
+                for (int termId = 0; termId < table.length; termId++) {
+                    positions[termId] = Arrays.asList(terms).indexOf(table[termId]);
+                }
+            }
+            double[] frequencies = docInfo.getTermFrequencies();
+            for (int position : positions) {
+                out.writeDouble(position >= 0 ? frequencies[position] : Double.NaN);
+            }
+        }
+    }
+
+    private static void writeDocumentFrequency(DataOutputStream out, Map<String, Integer> documentFrequency) throws IOException {
+        out.writeInt(documentFrequency.size());
+        for (Map.Entry<String, Integer> entry : documentFrequency.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    private static Map<String, Integer> readDocumentFrequency(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, Integer> documentFrequency = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            documentFrequency.put(in.readUTF(), in.readInt());
+        }
+        return documentFrequency;
+    }
+
+    static byte[] encodeError(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(message != null ? message : "");
+        return bytes.toByteArray();
+    }
+
+    static String decodeError(byte[] payload) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+    }
+
+    static byte[] encodeSearchResponse(List<DocumentTermsInfo> results) throws IOException {
+        // Intern the terms of all documents into a single table, documents usually share one terms array
+        Set<String> table = new LinkedHashSet<>();
+        String[] previousTerms = null;
+        for (DocumentTermsInfo docInfo : results) {
+            if (docInfo.getTerms() != previousTerms) {
+                previousTerms = docInfo.getTerms();
+                table.addAll(Arrays.asList(previousTerms));
+            }
+        }
+        String[] terms = table.toArray(new String[0]);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + results.size() * (16 + terms.length * Double.BYTES));
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(terms.length);
+        for (String term : terms) {
+            out.writeUTF(term);
+        }
+
+        out.writeInt(results.size());
+        TermPositions positions = new TermPositions(terms);
+        for (DocumentTermsInfo docInfo : results) {
+            out.writeUTF(docInfo.getDocumentName());
+            positions.writeFrequencies(out, docInfo);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<DocumentTermsInfo> decodeSearchResponse(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        String[] terms = new String[in.readInt()];
+        for (int termId = 0; termId < terms.length; termId++) {
+            terms[termId] = in.readUTF();
+        }
+
+        int documentCount = in.readInt();
+        List<DocumentTermsInfo> results = new ArrayList<>(documentCount);
+        for (int i = 0; i < documentCount; i++) {
+            results.add(new DocumentTermsInfo(in.readUTF(), terms, readFrequencies(in, terms.length)));
+        }
+        return results;
+    }
+}
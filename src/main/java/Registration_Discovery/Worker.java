@@ -8,67 +8,296 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Worker {
     private int port; // Port on which the worker listens for incoming connections
     private final String documentsPath; // Path to the folder containing documents
-    private String receivedQuery; // Query received from the client
+    private final String shard; // Shard served by this worker, replicas of a shard have the same documents
+    private volatile InvertedIndex index; // Latest snapshot of the index, replaced when documents change
+    private long scannedVersion; // Folder version last seen without an index, guarded by this
+    private long scannedGeneration;
+    private ExecutorService searchExecutor; // Runs the searches of all connections
+    private ExecutorService connectionExecutor; // One reader and one writer thread per open connection
     private static final Logger logger = LoggerFactory.getLogger(Worker.class);
+    // "index" answers queries from the inverted index, "scan" re-reads every document per query
+    private static final String SEARCH_MODE = System.getProperty("worker.searchMode", "index");
+    // Top-K evaluation with global statistics on the index: "maxscore" skips the documents that cannot make
+    // the top K, "exhaustive" scores every document matching the query; both return the same ranking
+    private static final String TOP_K_MODE = System.getProperty("worker.topKMode", "maxscore");
+    // Index documents added, changed or deleted while the worker is running
+    private static final boolean WATCH_DOCUMENTS = Boolean.parseBoolean(System.getProperty("worker.watchDocuments", "true"));
+    // Maximum number of searches executed at the same time, across all connections
+    private static final int MAX_CONCURRENCY = Integer.getInteger("worker.maxConcurrency", Runtime.getRuntime().availableProcessors());
+    // Maximum number of requests of a single connection that are queued or being searched
+    private static final int MAX_PENDING_PER_CONNECTION = Integer.getInteger("worker.maxPendingRequests", 16);
+    // Marks the end of the requests of a connection in its pending results queue
+    private static final Future<List<DocumentTermsInfo>> END_OF_STREAM = CompletableFuture.completedFuture(null);
+    // Stage latencies and counts, exported through JMX (see Metrics)
+    private static final LatencyHistogram REQUEST_LATENCY = Metrics.histogram("worker.request");
+    private static final LatencyHistogram FILE_READ_LATENCY = Metrics.histogram("worker.fileRead");
+    private static final LatencyHistogram TOKENIZE_LATENCY = Metrics.histogram("worker.tokenize");
+    private static final LatencyHistogram POSTINGS_LATENCY = Metrics.histogram("worker.postings");
+    private static final LatencyHistogram SCORE_LATENCY = Metrics.histogram("worker.score");
+    private static final LatencyHistogram ENCODE_LATENCY = Metrics.histogram("worker.encode");
+    private static final Counter REQUESTS = Metrics.counter("worker.requests");
+    private static final Counter ERRORS = Metrics.counter("worker.errors");
 
     public Worker(int port) {
+        // Each worker serves its own shard by default, start replicas with the same shard and documents folder
+        this(port, System.getProperty("worker.shard", String.valueOf(port)), System.getProperty("worker.documentsPath",
+                "D:\\Fifth year\\DS\\Ranem_Search_Engine\\Distributed_text_search_system\\src\\main\\resources\\documents" + port));
+    }
+
+    public Worker(int port, String shard, String documentsPath) {
         this.port = port;
+        this.shard = shard;
+        this.documentsPath = documentsPath;
+    }
 
-        this.documentsPath = "D:\\Fifth year\\DS\\Ranem_Search_Engine\\Distributed_text_search_system\\src\\main\\resources\\documents" + port;
+    public String getShard() {
+        return shard;
     }
 
     // Start the worker server to listen for incoming client connections
     public void start() {
+        if ("index".equals(SEARCH_MODE)) {
+            openIndex();
+        }
+
+        searchExecutor = Executors.newFixedThreadPool(MAX_CONCURRENCY);
+        connectionExecutor = Executors.newCachedThreadPool();
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Worker listening on port " + port);
+            System.out.println("Worker listening on port " + port + " (max concurrency " + MAX_CONCURRENCY + ")");
 
             while (true) {
-                try (Socket socket = serverSocket.accept()) {
+                try {
+                    Socket socket = serverSocket.accept();
                     System.out.println("Client connected");
 
-                    // Handle the client in a separate thread
-                    handleClient(socket);
+                    // Handle the client in a separate thread so other connections are served concurrently
+                    connectionExecutor.execute(() -> handleClient(socket));
                 } catch (IOException e) {
                     System.err.println("Error accepting client: " + e.getMessage());
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            searchExecutor.shutdownNow();
+            connectionExecutor.shutdownNow();
         }
     }
 
-    // Handle client requests
+    // Handle all the requests sent on a persistent client connection.
+    // The first bytes tell whether the client speaks the binary protocol or Java object serialization.
     private void handleClient(Socket socket) {
-        try (ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-             ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream())) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            BufferedInputStream inputStream = new BufferedInputStream(socket.getInputStream());
+
+            if (WireProtocol.isJavaSerialization(inputStream)) {
+                handleSerializationClient(socket, inputStream);
+            } else {
+                handleBinaryClient(socket, inputStream);
+            }
+        } catch (EOFException e) {
+            // The client closed the connection
+        } catch (IOException | ClassNotFoundException | ExecutionException e) {
+            System.err.println("Error processing request: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            // Receive the search query from the client
-            receiveQuery(inputStream);
+    // Binary protocol: each request carries an id, so results are written as soon as they are ready,
+    // in any order. At most MAX_PENDING_PER_CONNECTION requests are in flight per connection; beyond
+    // that the reader stops reading and TCP flow control pushes back.
+    private void handleBinaryClient(Socket socket, BufferedInputStream socketInput) throws IOException, InterruptedException {
+        DataInputStream inputStream = new DataInputStream(socketInput);
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Semaphore pendingRequests = new Semaphore(MAX_PENDING_PER_CONNECTION);
 
-            // Perform the search operation in the documents
-            List<DocumentTermsInfo> searchResults = searchDocuments();
+        try {
+            while (true) {
+                WireProtocol.Frame request = WireProtocol.readFrame(inputStream);
+                pendingRequests.acquire();
+                searchExecutor.execute(() -> {
+                    try {
+                        respond(socket, outputStream, request);
+                    } finally {
+                        pendingRequests.release();
+                    }
+                });
+            }
+        } catch (EOFException e) {
+            // The client closed the connection, wait for the requests still being searched
+        } finally {
+            pendingRequests.acquire(MAX_PENDING_PER_CONNECTION);
+        }
+    }
 
-            // Send the results back to the client
-            sendResults(outputStream, searchResults);
+    // Execute one binary request and write its response frame
+    private void respond(Socket socket, DataOutputStream outputStream, WireProtocol.Frame request) {
+        long startNanos = System.nanoTime();
+        byte type;
+        byte[] payload;
+        try {
+            if (request.type == WireProtocol.SEARCH_REQUEST) {
+                BooleanQuery query = WireProtocol.decodeSearchRequest(request.payload);
+                logger.debug("Received query: {}", query);
+                List<DocumentTermsInfo> results = searchDocuments(query.getTerms());
+                long encodeStartNanos = System.nanoTime();
+                type = WireProtocol.SEARCH_RESPONSE;
+                payload = WireProtocol.encodeSearchResponse(results);
+                ENCODE_LATENCY.recordSince(encodeStartNanos);
+            } else if (request.type == WireProtocol.TOP_K_REQUEST) {
+                WireProtocol.TopKRequest topKRequest = WireProtocol.decodeTopKRequest(request.payload);
+                logger.debug("Received query: {} (top {})", topKRequest.query, topKRequest.topK);
+                ShardResult result = searchTopK(topKRequest);
+                long encodeStartNanos = System.nanoTime();
+                type = WireProtocol.TOP_K_RESPONSE;
+                payload = WireProtocol.encodeTopKResponse(result);
+                ENCODE_LATENCY.recordSince(encodeStartNanos);
+            } else if (request.type == WireProtocol.STATS_REQUEST) {
+                type = WireProtocol.STATS_RESPONSE;
+                payload = WireProtocol.encodeStatsResponse(shardStatistics(WireProtocol.decodeStatsRequest(request.payload)));
+            } else if (request.type == WireProtocol.PING) {
+                type = WireProtocol.PONG;
+                payload = new byte[0];
+            } else {
+                type = WireProtocol.ERROR;
+                payload = WireProtocol.encodeError("Unsupported request type " + request.type);
+            }
+        } catch (RuntimeException | IOException e) {
+            System.err.println("Error searching documents: " + e);
+            ERRORS.increment();
+            type = WireProtocol.ERROR;
+            payload = encodeErrorQuietly(e.toString());
+        }
 
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error processing request: " + e.getMessage());
+        try {
+            synchronized (outputStream) {
+                WireProtocol.writeFrame(outputStream, type, request.requestId, payload);
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending results: " + e.getMessage());
+            closeQuietly(socket); // Unblock the reader of this connection
+        }
+        if (request.type != WireProtocol.PING) { // Health checks would hide the search latencies
+            REQUESTS.increment();
+            REQUEST_LATENCY.recordSince(startNanos);
+        }
+    }
+
+    private byte[] encodeErrorQuietly(String message) {
+        try {
+            return WireProtocol.encodeError(message);
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    // Java serialization fallback: queries are read as they arrive and searched on the shared pool,
+    // while a second thread writes the results back in request order, since this format has no request id.
+    private void handleSerializationClient(Socket socket, BufferedInputStream socketInput)
+            throws IOException, ClassNotFoundException, InterruptedException, ExecutionException {
+        BlockingQueue<Future<List<DocumentTermsInfo>>> pendingResults = new ArrayBlockingQueue<>(MAX_PENDING_PER_CONNECTION);
+
+        try (ObjectInputStream inputStream = new ObjectInputStream(socketInput);
+             ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            outputStream.flush(); // Send the stream header right away so the client can open its input stream
+
+            Future<?> writer = connectionExecutor.submit(() -> writeResults(socket, outputStream, pendingResults));
+            try {
+                while (true) {
+                    // Receive the search query from the client
+                    String query = receiveQuery(inputStream);
+
+                    // Perform the search operation in the documents
+                    pendingResults.put(searchExecutor.submit(() -> {
+                        long startNanos = System.nanoTime();
+                        try {
+                            return searchDocuments(QueryTerms.of(query).toArray());
+                        } finally {
+                            REQUESTS.increment();
+                            REQUEST_LATENCY.recordSince(startNanos);
+                        }
+                    }));
+                }
+            } catch (EOFException e) {
+                // The client closed the connection, flush the remaining results
+            } finally {
+                pendingResults.put(END_OF_STREAM);
+            }
+            writer.get();
+        }
+    }
+
+    // Send the results of the pending requests of a connection in the order the requests were received
+    private void writeResults(Socket socket, ObjectOutputStream outputStream,
+                              BlockingQueue<Future<List<DocumentTermsInfo>>> pendingResults) {
+        try {
+            while (true) {
+                Future<List<DocumentTermsInfo>> result = pendingResults.take();
+                if (result == END_OF_STREAM) {
+                    return;
+                }
+
+                List<DocumentTermsInfo> searchResults;
+                try {
+                    searchResults = result.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Error searching documents: " + e.getCause());
+                    ERRORS.increment();
+                    searchResults = Collections.emptyList();
+                }
+
+                // Send the results back to the client
+                sendResults(outputStream, searchResults);
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending results: " + e.getMessage());
+            closeQuietly(socket); // Unblock the reader of this connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing client socket: " + e.getMessage());
         }
     }
 
     // Receive the query from the client
-    private void receiveQuery(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
-        receivedQuery = (String) inputStream.readObject(); // Read the query as a string
-        System.out.println("Received query: " + receivedQuery);
+    private String receiveQuery(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+        String receivedQuery = (String) inputStream.readObject(); // Read the query as a string
+        logger.debug("Received query: {}", receivedQuery);
+        return receivedQuery;
+    }
+
+    // Load the persisted index next to the documents folder, or build it if missing or stale
+    private void openIndex() {
+        File folder = new File(documentsPath);
+        File indexDirectory = new File(folder.getParentFile(), folder.getName() + ".index");
+        index = InvertedIndex.openOrBuild(folder, indexDirectory);
+        if (WATCH_DOCUMENTS) {
+            new IndexWatcher(folder, indexDirectory, index, newIndex -> index = newIndex).start();
+        }
     }
 
-    // Perform the search operation in the documents
-    private List<DocumentTermsInfo> searchDocuments() {
-        System.out.println("Searching documents in path: " + documentsPath);
+    // Perform the search operation in the documents. Every document is returned with the frequencies of
+    // all the query terms, the Coordinator applies the boolean operators of the query when it scores them.
+    private List<DocumentTermsInfo> searchDocuments(String[] queryWords) {
+        if (index != null) {
+            return searchIndex(queryWords);
+        }
+
+        logger.debug("Searching documents in path: {}", documentsPath);
 
         File folder = new File(documentsPath);
         File[] files = folder.listFiles((dir, name) -> name.endsWith(".txt")); // Get all .txt files in the folder
@@ -76,9 +305,12 @@ public class Worker {
         List<DocumentTermsInfo> results = new ArrayList<>();
 
         if (files != null) {
+            // Build the matching automaton once per query and reuse it for every file
+            MultiTermScanner scanner = new MultiTermScanner(Arrays.asList(queryWords));
+
             for (File file : files) {
-                System.out.println("Processing file: " + file.getName());
-                DocumentTermsInfo documentInfo = processFile(file); // Process each file
+                logger.trace("Processing file: {}", file.getName());
+                DocumentTermsInfo documentInfo = processFile(file, queryWords, scanner); // Process each file
                 results.add(documentInfo);
             }
         } else {
@@ -88,60 +320,304 @@ public class Worker {
         return results;
     }
 
-    // Process a single file and calculate term frequencies (TF)
-    private DocumentTermsInfo processFile(File file) {
-        DocumentTermsInfo documentInfo = new DocumentTermsInfo(file.getName()); // Create a new document info object
+    // Perform the search operation using the inverted index, touching only the postings of the query words
+    private List<DocumentTermsInfo> searchIndex(String[] queryWords) {
+        InvertedIndex index = this.index; // The same snapshot for the whole query
+        int documentCount = index.getDocumentCount();
+        double[][] termFrequencies = new double[documentCount][queryWords.length];
+
+        long startNanos = System.nanoTime();
+        for (int termId = 0; termId < queryWords.length; termId++) {
+            int[] counts = index.countOccurrences(queryWords[termId]);
+            for (int docId = 0; docId < documentCount; docId++) {
+                termFrequencies[docId][termId] = calculateTermFrequency(counts[docId], index.getDocumentLength(docId));
+            }
+        }
+        POSTINGS_LATENCY.recordSince(startNanos);
+
+        List<DocumentTermsInfo> results = new ArrayList<>(documentCount);
+        for (int docId = 0; docId < documentCount; docId++) {
+            results.add(new DocumentTermsInfo(index.getDocumentName(docId), queryWords, termFrequencies[docId]));
+        }
+        return results;
+    }
+
+    // Statistics of the shard for the given words: document count and number of documents containing each word,
+    // read from the postings of the words when there is an index
+    private ShardResult shardStatistics(List<String> words) {
+        String[] queryWords = words.toArray(new String[0]);
+        Map<String, Integer> documentFrequency = new LinkedHashMap<>();
+        InvertedIndex index = this.index; // The same snapshot for every word
+        if (index != null) {
+            long startNanos = System.nanoTime();
+            for (String queryWord : queryWords) {
+                documentFrequency.put(queryWord, index.documentFrequency(queryWord));
+            }
+            POSTINGS_LATENCY.recordSince(startNanos);
+            return new ShardResult(index.getVersion(), index.getGeneration(), index.getDocumentCount(), documentFrequency,
+                    Collections.emptyList());
+        }
+        WordCounts wordCounts = scanQueryWords(queryWords);
+        for (int i = 0; i < queryWords.length; i++) {
+            documentFrequency.put(queryWords[i], countMatchingDocuments(wordCounts.counts[i]));
+        }
+        return new ShardResult(wordCounts.indexVersion, wordCounts.indexGeneration, wordCounts.documentCount, documentFrequency,
+                Collections.emptyList());
+    }
 
-        try {
-            String content = new String(Files.readAllBytes(file.toPath())); // Read the file content
+    // Generation of the folder content seen by the queries that scan it, a new one whenever its version changes
+    private synchronized long scanGeneration(long version) {
+        if (scannedGeneration == 0 || version != scannedVersion) {
+            scannedVersion = version;
+            scannedGeneration = InvertedIndex.nextGeneration();
+        }
+        return scannedGeneration;
+    }
 
-            // Split the content into words and calculate total word count in the document
-            String[] words = content.split("\\s+");
-            int totalWords = words.length;
+    private static int countMatchingDocuments(int[] counts) {
+        int documentFrequency = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                documentFrequency++;
+            }
+        }
+        return documentFrequency;
+    }
 
-            // Initialize the map to store term frequencies
-            HashMap<String, Double> termFrequencies = new HashMap<>();
+    // Return only the documents matching the query (at least one query word when it has no boolean operators),
+    // ranked by TF-IDF and truncated to the K best (all of them when K is not positive), together with the
+    // shard statistics. IDF values come from the global statistics of the request when present, otherwise
+    // from the shard. Terms that only appear negated in the query weigh nothing.
+    private ShardResult searchTopK(WireProtocol.TopKRequest request) {
+        int limit = request.topK > 0 ? request.topK : Integer.MAX_VALUE;
+        BooleanQuery query = request.query;
+        String[] queryWords = query.getTerms();
+        InvertedIndex index = this.index; // The same snapshot for the whole query
+        if (index != null) {
+            boolean pruned = request.totalDocuments >= 0 && request.topK > 0 && "maxscore".equals(TOP_K_MODE);
+            return searchIndexTopK(index, request, queryWords, limit, pruned);
+        }
+        WordCounts wordCounts = scanQueryWords(queryWords);
+        boolean globalStatistics = request.totalDocuments >= 0;
+
+        // Shard statistics: number of documents containing each query word
+        Map<String, Integer> documentFrequency = new LinkedHashMap<>();
+        double[] idf = new double[queryWords.length];
+        for (int i = 0; i < queryWords.length; i++) {
+            int df = countMatchingDocuments(wordCounts.counts[i]);
+            documentFrequency.put(queryWords[i], df);
+            idf[i] = !query.isScoring(i) ? 0
+                    : (globalStatistics
+                    ? Scoring.inverseDocumentFrequency(request.documentFrequency.getOrDefault(queryWords[i], df), request.totalDocuments)
+                    : Scoring.inverseDocumentFrequency(df, wordCounts.documentCount)) * Scoring.termWeight(queryWords[i]);
+        }
+        boolean disjunction = query.isDisjunction();
+
+        // Keep the K best documents in a bounded min-heap, the worst one on top
+        Comparator<DocumentTermsInfo> byScore = Comparator.comparingDouble(DocumentTermsInfo::getScore)
+                .thenComparing(DocumentTermsInfo::getDocumentName, Comparator.reverseOrder());
+        PriorityQueue<DocumentTermsInfo> best = new PriorityQueue<>(Math.min(limit, 1024), byScore);
+        double[] tf = new double[queryWords.length];
+
+        long startNanos = System.nanoTime();
+        for (int docId = 0; docId < wordCounts.documentCount; docId++) {
+            boolean matches = false;
+            double score = 0;
+            for (int i = 0; i < queryWords.length; i++) {
+                int count = wordCounts.counts[i][docId];
+                tf[i] = calculateTermFrequency(count, wordCounts.documentLengths[docId]);
+                score += tf[i] * idf[i];
+                matches |= count > 0;
+            }
+            if (!disjunction) {
+                int document = docId;
+                matches = query.matches(i -> wordCounts.counts[i][document] > 0);
+            }
+            if (!matches || (best.size() == limit && score < best.peek().getScore())) {
+                continue;
+            }
 
-            // Calculate the term frequencies for the query words
-            for (String queryWord : receivedQuery.split("\\s+")) {
-                queryWord = queryWord.trim(); // Remove any surrounding spaces
-                // Count occurrences of the query word in the document
-                double wordCountInDocument = countWordOccurrences(content, queryWord);
-                // Calculate Term Frequency (TF)
-                double tf = calculateTermFrequency(wordCountInDocument, totalWords);
+            DocumentTermsInfo documentInfo = new DocumentTermsInfo(wordCounts.documentNames[docId], queryWords, tf.clone());
+            documentInfo.setScore(score);
+            best.offer(documentInfo);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+
+        SCORE_LATENCY.recordSince(startNanos);
+        List<DocumentTermsInfo> ranked = new ArrayList<>(best);
+        ranked.sort(byScore.reversed());
+        return new ShardResult(wordCounts.indexVersion, wordCounts.indexGeneration, wordCounts.documentCount, documentFrequency, ranked);
+    }
+
+    // Same ranking as the scan of searchTopK, evaluated document at a time over the postings of the query terms,
+    // so that only the documents matching the query are visited and scored. When pruned, with the global
+    // statistics of the request and a K, postings are also skipped instead of scored: with MaxScore when any
+    // query word matches, otherwise by jumping over the skip tables of the terms the query requires.
+    // A pruned search only counts the shard statistics of the words the request has no statistics for.
+    private ShardResult searchIndexTopK(InvertedIndex index, WireProtocol.TopKRequest request, String[] queryWords,
+                                        int limit, boolean pruned) {
+        boolean globalStatistics = request.totalDocuments >= 0;
+        Map<String, Integer> documentFrequency = new LinkedHashMap<>();
+        double[] idf = new double[queryWords.length];
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < queryWords.length; i++) {
+            Integer df = pruned ? request.documentFrequency.get(queryWords[i]) : null;
+            if (df == null) {
+                df = index.documentFrequency(queryWords[i]);
+                documentFrequency.put(queryWords[i], df);
+            }
+            idf[i] = !request.query.isScoring(i) ? 0
+                    : (globalStatistics
+                    ? Scoring.inverseDocumentFrequency(request.documentFrequency.getOrDefault(queryWords[i], df), request.totalDocuments)
+                    : Scoring.inverseDocumentFrequency(df, index.getDocumentCount())) * Scoring.termWeight(queryWords[i]);
+        }
+        POSTINGS_LATENCY.recordSince(startNanos);
 
-                // Log the results for each term
-//                logger.info("(Term: {}, Frequency: {}, Total Document Words: {}, Term Frequency (Percentage): {})",
-//                        queryWord, wordCountInDocument, totalWords, tf);
+        startNanos = System.nanoTime();
+        List<DocumentTermsInfo> ranked = rankTopK(index, request.query, idf, limit, pruned);
+        SCORE_LATENCY.recordSince(startNanos);
+        return new ShardResult(index.getVersion(), index.getGeneration(), index.getDocumentCount(), documentFrequency, ranked);
+    }
+
+    // The K best documents of the index matching the query, best first, ties broken by document name.
+    // Pruned, disjunctions are ranked with MaxScore, otherwise every matching document is scored: both give
+    // the same ranking.
+    static List<DocumentTermsInfo> rankTopK(InvertedIndex index, BooleanQuery query, double[] idf, int limit, boolean pruned) {
+        Comparator<DocumentTermsInfo> byScore = Comparator.comparingDouble(DocumentTermsInfo::getScore)
+                .thenComparing(DocumentTermsInfo::getDocumentName, Comparator.reverseOrder());
+        PriorityQueue<DocumentTermsInfo> best = new PriorityQueue<>(Math.min(limit, 1024), byScore);
+        if (pruned && query.isDisjunction()) {
+            MaxScore.collect(index, query.getTerms(), idf, limit, best);
+        } else {
+            collectMatches(index, query, idf, limit, best);
+        }
+        List<DocumentTermsInfo> ranked = new ArrayList<>(best);
+        ranked.sort(byScore.reversed());
+        return ranked;
+    }
 
-                // Store the term frequency in the map
-                termFrequencies.put(queryWord, tf);
+    // Score the documents matching a boolean query and keep the K best in the heap, like the scan of searchTopK.
+    // Conjunctions jump from document to document over the skip tables of the postings, so every term
+    // added to an AND narrows the documents visited instead of adding postings to decode.
+    private static void collectMatches(InvertedIndex index, BooleanQuery query, double[] idf, int limit, PriorityQueue<DocumentTermsInfo> best) {
+        String[] queryWords = query.getTerms();
+        double[] tf = new double[queryWords.length];
+
+        BooleanQuery.DocumentCursor matches = query.cursor(index);
+        for (int docId = matches.nextDoc(); docId != TermCursor.NO_MORE_DOCS; docId = matches.nextDoc()) {
+            int documentLength = index.getDocumentLength(docId);
+            double score = 0;
+            for (int i = 0; i < queryWords.length; i++) {
+                tf[i] = calculateTermFrequency(matches.count(i), documentLength);
+                score += tf[i] * idf[i];
+            }
+            if (best.size() == limit && score < best.peek().getScore()) {
+                continue;
             }
 
-            // Set the term frequencies in the document info object
-            documentInfo.setTermFrequency(termFrequencies);
+            DocumentTermsInfo documentInfo = new DocumentTermsInfo(index.getDocumentName(docId), queryWords, tf.clone());
+            documentInfo.setScore(score);
+            best.offer(documentInfo);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+    }
+
+    // Occurrence counts of the query words in every document of the folder, when it is scanned
+    private static class WordCounts {
+        long indexVersion; // Of the folder scanned
+        long indexGeneration;
+        int documentCount;
+        String[] documentNames;
+        int[] documentLengths;
+        int[][] counts; // Query word -> document -> number of words containing it
+    }
+
+    // Count the query words in every document by scanning the folder, for the searches without an index
+    private WordCounts scanQueryWords(String[] queryWords) {
+        WordCounts wordCounts = new WordCounts();
+        wordCounts.indexVersion = InvertedIndex.folderVersion(new File(documentsPath));
+        wordCounts.indexGeneration = scanGeneration(wordCounts.indexVersion);
+        File[] files = new File(documentsPath).listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null) {
+            files = new File[0];
+        }
+        MultiTermScanner scanner = new MultiTermScanner(Arrays.asList(queryWords));
+        int[] fileCounts = new int[queryWords.length];
+        wordCounts.documentCount = files.length;
+        wordCounts.documentNames = new String[files.length];
+        wordCounts.documentLengths = new int[files.length];
+        wordCounts.counts = new int[queryWords.length][files.length];
+        for (int docId = 0; docId < files.length; docId++) {
+            wordCounts.documentNames[docId] = files[docId].getName();
+            try {
+                wordCounts.documentLengths[docId] = scanFile(files[docId], scanner, fileCounts);
+                for (int i = 0; i < queryWords.length; i++) {
+                    wordCounts.counts[i][docId] = fileCounts[i];
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading file: " + files[docId].getName());
+            }
+        }
+        return wordCounts;
+    }
+
+    // Process a single file and calculate term frequencies (TF) of all query words in one pass
+    static DocumentTermsInfo processFile(File file, String[] queryWords, MultiTermScanner scanner) {
+        double[] termFrequencies = new double[queryWords.length]; // Term id -> frequency, 0 if the file cannot be read
+
+        try {
+            // Count the occurrences of every query word and the total word count in a single scan
+            int[] wordCounts = new int[queryWords.length];
+            int totalWords = scanFile(file, scanner, wordCounts);
+
+            // Calculate the term frequencies for the query words
+            for (int i = 0; i < queryWords.length; i++) {
+                // Calculate Term Frequency (TF)
+                termFrequencies[i] = calculateTermFrequency(wordCounts[i], totalWords);
+            }
 
         } catch (IOException e) {
             System.err.println("Error reading file: " + file.getName());
         }
 
-        return documentInfo;
+        return new DocumentTermsInfo(file.getName(), queryWords, termFrequencies);
     }
 
-    // Count the occurrences of a word in the document (case insensitive)
-    private double countWordOccurrences(String fileContent, String word) {
-        String[] documentWords = fileContent.split("\\s+");
-        double count = 0;
-        for (String documentWord : documentWords) {
-            if (documentWord.toLowerCase().contains(word.toLowerCase())) {
-                count++;
-            }
+    // Read a file and count the query words in it, returns the number of words of the file
+    private static int scanFile(File file, MultiTermScanner scanner, int[] wordCounts) throws IOException {
+        long startNanos = System.nanoTime();
+        byte[] content = Files.readAllBytes(file.toPath()); // Read the file content
+        long readNanos = System.nanoTime();
+        FILE_READ_LATENCY.recordNanos(readNanos - startNanos);
+        int totalWords = scanner.scan(content, wordCounts);
+        TOKENIZE_LATENCY.recordSince(readNanos);
+        return totalWords;
+    }
+
+    // Split the query into trimmed query words, the Coordinator splits queries the same way.
+    // Quoted phrases and NEAR/k pairs are kept as single query terms (see PhraseQuery), and the terms of a
+    // query with boolean operators are its distinct terms, negated ones included (see BooleanQuery).
+    // A fuzzy word becomes one term per edit distance (see FuzzyQuery).
+    static String[] splitQuery(String query) {
+        if (BooleanQuery.hasOperators(query)) {
+            return BooleanQuery.parse(query).getTerms();
+        }
+        if (PhraseQuery.hasOperators(query)) {
+            return FuzzyQuery.expandAll(PhraseQuery.split(query));
+        }
+        String[] queryWords = query.split("\\s+");
+        for (int i = 0; i < queryWords.length; i++) {
+            queryWords[i] = queryWords[i].trim();
         }
-        return count;
+        return FuzzyQuery.expandAll(queryWords);
     }
 
     // Calculate Term Frequency (TF) for a word
-    private double calculateTermFrequency(double wordCountInDocument, double documentWordsCount) {
+    private static double calculateTermFrequency(double wordCountInDocument, double documentWordsCount) {
         double TF = 0.0;
         if (documentWordsCount != 0) {
             TF = wordCountInDocument / documentWordsCount;
@@ -153,9 +629,11 @@ public class Worker {
 
     // Send the search results back to the coordinator
     private void sendResults(ObjectOutputStream outputStream, List<DocumentTermsInfo> results) throws IOException {
-        System.out.println("Sending results to coordinator...");
+        long startNanos = System.nanoTime();
         outputStream.writeObject(results); // Write the list of document information to the output stream
         outputStream.flush(); // Ensure all data is sent
-        System.out.println("Results sent successfully: " + results);
+        outputStream.reset(); // Forget the written objects, the connection outlives this request
+        ENCODE_LATENCY.recordSince(startNanos);
+        logger.trace("Results sent to coordinator: {}", results);
     }
 }
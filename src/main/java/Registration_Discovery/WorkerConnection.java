@@ -0,0 +1,125 @@
+package Registration_Discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A persistent binary protocol connection to one Worker.
+// Many requests can be in flight at the same time: a reader thread matches every response
+// frame to the pending request with the same id.
+class WorkerConnection {
+    private static final Logger logger = LoggerFactory.getLogger(WorkerConnection.class);
+
+    private final String address;
+    private final Socket socket;
+    private final DataOutputStream outputStream;
+    private final Map<Integer, CompletableFuture<WireProtocol.Frame>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean open = true;
+
+    private WorkerConnection(String address, Socket socket) throws IOException {
+        this.address = address;
+        this.socket = socket;
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    // Open a connection to a worker given as "ip:port"
+    static WorkerConnection connect(String address, int connectTimeoutMillis) throws IOException {
+        String[] addressParts = address.split(":"); // Split address into IP and port
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(addressParts[0], Integer.parseInt(addressParts[1])), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        WorkerConnection connection = new WorkerConnection(address, socket);
+        Thread reader = new Thread(connection::readResponses, "worker-connection-" + address);
+        reader.setDaemon(true);
+        reader.start();
+        logger.debug("Connected to worker {}", address);
+        return connection;
+    }
+
+    // Send a request frame, the returned future completes with the matching response frame
+    CompletableFuture<WireProtocol.Frame> send(byte type, byte[] payload) {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<WireProtocol.Frame> response = new CompletableFuture<>();
+        inFlight.put(requestId, response);
+        // Drop the entry if the caller gives up on the request (e.g. timeout)
+        response.whenComplete((frame, e) -> inFlight.remove(requestId));
+
+        if (!open) {
+            response.completeExceptionally(new IOException("Connection to " + address + " is closed"));
+            return response;
+        }
+        try {
+            synchronized (outputStream) {
+                WireProtocol.writeFrame(outputStream, type, requestId, payload);
+            }
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+            close();
+        }
+        return response;
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    // Close the socket and fail every request still waiting for a response
+    void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing connection to {}: {}", address, e.getMessage());
+        }
+        IOException closed = new IOException("Connection to " + address + " closed");
+        for (CompletableFuture<WireProtocol.Frame> response : inFlight.values()) {
+            response.completeExceptionally(closed);
+        }
+        inFlight.clear();
+    }
+
+    private void readResponses() {
+        try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (open) {
+                WireProtocol.Frame frame = WireProtocol.readFrame(inputStream);
+                CompletableFuture<WireProtocol.Frame> response = inFlight.remove(frame.requestId);
+                if (response != null) {
+                    response.complete(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                logger.warn("Connection to worker {} lost: {}", address, e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package Registration_Discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Keeps a small set of persistent connections per worker address so queries do not pay
+// TCP and stream setup on every request.
+// Requests are spread over the least busy open connection of the worker, closed connections
+// are re-opened lazily or by the periodic health check, and the connections of a worker are
+// dropped as soon as the ServiceRegistry reports that it left the cluster.
+class WorkerConnectionPool implements OnMembershipChangeCallback {
+    private static final Logger logger = LoggerFactory.getLogger(WorkerConnectionPool.class);
+    private static final int POOL_SIZE = Integer.getInteger("coordinator.poolSize", 2);
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("coordinator.connectTimeoutMillis", 2000);
+    private static final long HEALTH_CHECK_MILLIS = Long.getLong("coordinator.healthCheckMillis", 5000);
+
+    private final Map<String, Slots> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService healthChecker;
+
+    // The connections of one worker. Slots are read without locking, and changed while holding the Slots
+    // monitor, which also guards the flags of the slots being connected.
+    private static final class Slots {
+        final AtomicReferenceArray<WorkerConnection> connections = new AtomicReferenceArray<>(POOL_SIZE);
+        final boolean[] connecting = new boolean[POOL_SIZE];
+    }
+
+    WorkerConnectionPool() {
+        healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "worker-pool-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkConnections, HEALTH_CHECK_MILLIS, HEALTH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Send a request to a worker on one of its pooled connections
+    CompletableFuture<WireProtocol.Frame> send(String address, byte type, byte[] payload) {
+        try {
+            return acquire(address).send(type, payload);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Requests waiting for a response on all the connections of a worker.
+    // Reads the slots without locking: ReplicaSelector calls it for every replica of every query.
+    int getInFlightCount(String address) {
+        Slots slots = pools.get(address);
+        if (slots == null) {
+            return 0;
+        }
+        int inFlight = 0;
+        for (int i = 0; i < slots.connections.length(); i++) {
+            WorkerConnection connection = slots.connections.get(i);
+            if (connection != null && connection.isOpen()) {
+                inFlight += connection.getInFlightCount();
+            }
+        }
+        return inFlight;
+    }
+
+    // Pick the open connection with the fewest requests in flight, opening a new one while the pool is not full.
+    // The slot is reserved under the lock and the connection opened outside of it, so a worker that does not
+    // answer only delays the queries sent to it.
+    private WorkerConnection acquire(String address) throws IOException {
+        Slots slots = pools.computeIfAbsent(address, a -> new Slots());
+        int freeSlot;
+        synchronized (slots) {
+            while (true) {
+                WorkerConnection best = null;
+                freeSlot = -1;
+                for (int i = 0; i < POOL_SIZE; i++) {
+                    WorkerConnection connection = slots.connections.get(i);
+                    if (connection == null || !connection.isOpen()) {
+                        if (freeSlot < 0 && !slots.connecting[i]) {
+                            freeSlot = i;
+                        }
+                    } else if (best == null || connection.getInFlightCount() < best.getInFlightCount()) {
+                        best = connection;
+                    }
+                }
+                if (best != null && (best.getInFlightCount() == 0 || freeSlot < 0)) {
+                    return best;
+                }
+                if (freeSlot >= 0) {
+                    slots.connecting[freeSlot] = true;
+                    break;
+                }
+                try {
+                    slots.wait(CONNECT_TIMEOUT_MILLIS); // Every slot is being connected by other queries
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a connection to worker " + address, e);
+                }
+            }
+        }
+
+        WorkerConnection connection;
+        try {
+            connection = WorkerConnection.connect(address, CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException | RuntimeException e) {
+            synchronized (slots) {
+                slots.connecting[freeSlot] = false;
+                slots.notifyAll();
+            }
+            throw e;
+        }
+        synchronized (slots) {
+            slots.connecting[freeSlot] = false;
+            slots.notifyAll();
+            if (pools.get(address) == slots) {
+                slots.connections.set(freeSlot, connection);
+                return connection;
+            }
+        }
+        connection.close(); // Evicted while connecting
+        throw new IOException("Worker " + address + " left the cluster");
+    }
+
+    // Ping the idle connections and re-open the broken ones of the workers still in the pool
+    private void checkConnections() {
+        for (Map.Entry<String, Slots> entry : pools.entrySet()) {
+            Slots slots = entry.getValue();
+            for (int i = 0; i < POOL_SIZE; i++) {
+                WorkerConnection connection = slots.connections.get(i);
+                if (connection != null && connection.isOpen()) {
+                    if (connection.getInFlightCount() == 0) {
+                        ping(connection);
+                    }
+                    continue;
+                }
+                synchronized (slots) {
+                    if (slots.connecting[i]) {
+                        continue; // A query is opening it
+                    }
+                    slots.connecting[i] = true;
+                }
+                WorkerConnection reconnected = null;
+                try {
+                    reconnected = WorkerConnection.connect(entry.getKey(), CONNECT_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    logger.debug("Could not reconnect to worker {}: {}", entry.getKey(), e.getMessage());
+                }
+                synchronized (slots) {
+                    slots.connecting[i] = false;
+                    slots.notifyAll();
+                    if (reconnected != null && pools.get(entry.getKey()) == slots
+                            && (slots.connections.get(i) == null || !slots.connections.get(i).isOpen())) {
+                        slots.connections.set(i, reconnected);
+                        continue;
+                    }
+                }
+                if (reconnected != null) {
+                    reconnected.close(); // Evicted or replaced in the meantime
+                }
+            }
+        }
+    }
+
+    private void ping(WorkerConnection connection) {
+        connection.send(WireProtocol.PING, new byte[0])
+                .orTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((frame, e) -> {
+                    if (e != null || frame.type != WireProtocol.PONG) {
+                        logger.warn("Health check of worker {} failed, closing connection", connection.getAddress());
+                        connection.close();
+                    }
+                });
+    }
+
+    // Close and forget all the connections of a worker
+    void evict(String address) {
+        Slots slots = pools.remove(address);
+        if (slots == null) {
+            return;
+        }
+        synchronized (slots) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                WorkerConnection connection = slots.connections.get(i);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            slots.notifyAll();
+        }
+        logger.info("Evicted connections to worker {}", address);
+    }
+
+    @Override
+    public void onWorkerAdded(String address) {
+        // Connections are opened on first use
+    }
+
+    @Override
+    public void onWorkerRemoved(String address) {
+        evict(address);
+    }
+}
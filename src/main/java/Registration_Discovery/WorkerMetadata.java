@@ -0,0 +1,50 @@
+package Registration_Discovery;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+// What a worker publishes in its /service_registry znode: where to reach it and which shard of the
+// documents it serves. Workers with the same shard are replicas holding the same documents.
+// Znodes holding a bare "ip:port" (older workers) are read as a shard of their own.
+public class WorkerMetadata {
+    private static final Gson GSON = new Gson();
+
+    private String address;
+    private String shard;
+
+    public WorkerMetadata(String address, String shard) {
+        this.address = address;
+        this.shard = shard;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
+    public String toJson() {
+        return GSON.toJson(this);
+    }
+
+    public static WorkerMetadata parse(String data) {
+        if (data.startsWith("{")) {
+            try {
+                WorkerMetadata metadata = GSON.fromJson(data, WorkerMetadata.class);
+                if (metadata.address != null) {
+                    return metadata.shard != null ? metadata : new WorkerMetadata(metadata.address, metadata.address);
+                }
+            } catch (JsonParseException e) {
+                // Not metadata, read as a bare address below
+            }
+        }
+        return new WorkerMetadata(data, data);
+    }
+
+    @Override
+    public String toString() {
+        return address + " (shard " + shard + ")";
+    }
+}
@@ -0,0 +1,65 @@
+package Registration_Discovery;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// MaxScore must return exactly the top K of the exhaustive evaluation: the same documents, in the same
+// order, with the same scores, ties broken by document name, also when fewer than K documents match.
+// Both are run through the ranking of the Workers, pruned and not.
+class MaxScoreTest {
+    private static final long[] SEEDS = {1, 2, 3, 4};
+    private static final int[] LIMITS = {1, 2, 3, 10, 50, 10_000};
+
+    @TempDir
+    File directory;
+
+    @Test
+    void sameTopKAsExhaustiveEvaluation() throws IOException {
+        for (long seed : SEEDS) {
+            File folder = new File(directory, "docs" + seed);
+            folder.mkdirs();
+            RandomCorpus corpus = new RandomCorpus(folder, seed, 300);
+            Random random = new Random(seed);
+
+            InvertedIndex index = InvertedIndex.openOrBuild(folder, new File(directory, "index" + seed));
+            for (int round = 0; round < 4; round++) {
+                for (int query = 0; query < 40; query++) {
+                    String[] queryTerms = corpus.queryTerms(1 + random.nextInt(5));
+                    check(index, queryTerms, random, "seed " + seed + " round " + round);
+                }
+                index = index.update(folder, corpus.change(20)); // In-memory segments and deletions
+            }
+        }
+    }
+
+    private static void check(InvertedIndex index, String[] queryTerms, Random random, String context) {
+        BooleanQuery query = BooleanQuery.disjunction(queryTerms);
+        String[] terms = query.getTerms();
+        double[] idf = new double[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            // Global statistics differ from the shard ones, a negated term weighs nothing
+            idf[i] = random.nextInt(8) == 0 ? 0
+                    : Scoring.inverseDocumentFrequency(index.documentFrequency(terms[i]) + random.nextInt(3), index.getDocumentCount() * 2)
+                    * Scoring.termWeight(terms[i]);
+        }
+
+        for (int limit : LIMITS) {
+            String message = context + " query " + String.join(" | ", terms) + " limit " + limit;
+            List<DocumentTermsInfo> expected = Worker.rankTopK(index, query, idf, limit, false);
+            List<DocumentTermsInfo> actual = Worker.rankTopK(index, query, idf, limit, true);
+
+            assertEquals(expected.size(), actual.size(), message);
+            for (int rank = 0; rank < expected.size(); rank++) {
+                assertEquals(expected.get(rank).getDocumentName(), actual.get(rank).getDocumentName(), message + " rank " + rank);
+                assertEquals(expected.get(rank).getScore(), actual.get(rank).getScore(), 0.0, message + " rank " + rank);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package Registration_Discovery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Folder of random documents for the randomized index tests. Words are drawn from a skewed vocabulary
+// so that some terms are in most documents and some in a few, some words contain others, and some
+// documents are copies of others so that scores tie.
+final class RandomCorpus {
+    private static final String[] VOCABULARY = {
+            "distributed", "systems", "System", "search", "engine", "Engines", "the", "of", "data", "index",
+            "distributed-systems", "searching", "a", "at", "zookeeper", "worker", "workers", "coordinator",
+            "leader", "sys", "dat", "DATA", "query", "queries", "rank", "ranking", "shard", "replica"
+    };
+
+    private final File folder;
+    private final Random random;
+    private final int documentCount;
+
+    RandomCorpus(File folder, long seed, int documentCount) throws IOException {
+        this.folder = folder;
+        this.random = new Random(seed);
+        this.documentCount = documentCount;
+        for (int i = 0; i < documentCount; i++) {
+            write(i);
+        }
+    }
+
+    File getFolder() {
+        return folder;
+    }
+
+    // Rewrite or delete a few random documents, returns the names of the changed ones
+    List<String> change(int count) throws IOException {
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int document = random.nextInt(documentCount + documentCount / 10); // Also adds new documents
+            String name = name(document);
+            if (random.nextInt(4) == 0) {
+                Files.deleteIfExists(new File(folder, name).toPath());
+            } else {
+                write(document);
+            }
+            changed.add(name);
+        }
+        return changed;
+    }
+
+    // Random queries: words of the vocabulary, parts of words, phrases, NEAR/k pairs and fuzzy words
+    String[] queryTerms(int count) {
+        String[] terms = new String[count];
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    terms[i] = '"' + word() + " " + word() + '"';
+                    break;
+                case 1:
+                    terms[i] = word() + " NEAR/" + random.nextInt(4) + " " + word();
+                    break;
+                case 2:
+                    String word = word();
+                    int start = random.nextInt(word.length());
+                    terms[i] = word.substring(start, start + 1 + random.nextInt(word.length() - start));
+                    break;
+                case 3:
+                    terms[i] = word() + "~=" + random.nextInt(FuzzyQuery.MAX_DISTANCE + 1);
+                    break;
+                default:
+                    terms[i] = word();
+            }
+        }
+        return terms;
+    }
+
+    private void write(int document) throws IOException {
+        String content;
+        if (document > 0 && random.nextInt(8) == 0) { // Copy of an earlier document, same scores
+            File original = new File(folder, name(random.nextInt(document)));
+            content = original.exists() ? Files.readString(original.toPath()) : "";
+        } else {
+            StringBuilder text = new StringBuilder(random.nextBoolean() ? " " : "");
+            int words = random.nextInt(120);
+            for (int i = 0; i < words; i++) {
+                text.append(word()).append(random.nextInt(12) == 0 ? "\n" : random.nextInt(20) == 0 ? "  " : " ");
+            }
+            content = text.toString();
+        }
+        Files.writeString(new File(folder, name(document)).toPath(), content);
+    }
+
+    // Word of the vocabulary, the first ones much more often than the last ones
+    private String word() {
+        double skewed = Math.pow(random.nextDouble(), 2.5);
+        return VOCABULARY[(int) (skewed * VOCABULARY.length)];
+    }
+
+    private static String name(int document) {
+        return String.format("doc%04d.txt", document);
+    }
+}
@@ -0,0 +1,113 @@
+package Registration_Discovery;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The document-at-a-time cursors of the index must walk exactly the documents counted by countOccurrences,
+// with the same counts and document frequencies, and the counts of single words must match the words of the
+// documents themselves: this covers the postings codec, its skip tables and the mapping of segment ids through updates.
+class TermCursorTest {
+    private static final long[] SEEDS = {1, 2, 3, 4};
+
+    @TempDir
+    File directory;
+
+    @Test
+    void cursorsMatchCountsAcrossUpdates() throws IOException {
+        for (long seed : SEEDS) {
+            File folder = new File(directory, "docs" + seed);
+            File indexDirectory = new File(directory, "index" + seed);
+            folder.mkdirs();
+            RandomCorpus corpus = new RandomCorpus(folder, seed, 400);
+            Random random = new Random(seed);
+
+            InvertedIndex index = InvertedIndex.openOrBuild(folder, indexDirectory);
+            check(index, folder, corpus.queryTerms(40), random, "seed " + seed);
+            for (int round = 0; round < 12; round++) { // In-memory segments and deletions
+                index = index.update(folder, corpus.change(1 + random.nextInt(30)));
+                check(index, folder, corpus.queryTerms(15), random, "seed " + seed + " update " + round);
+            }
+            index = InvertedIndex.openOrBuild(folder, indexDirectory); // Rebuilt from the changed folder
+            check(index, folder, corpus.queryTerms(40), random, "seed " + seed + " rebuilt");
+        }
+    }
+
+    private static void check(InvertedIndex index, File folder, String[] queryTerms, Random random, String context) throws IOException {
+        String[][] documentWords = new String[index.getDocumentCount()][];
+        for (int docId = 0; docId < documentWords.length; docId++) {
+            byte[] content = Files.readAllBytes(new File(folder, index.getDocumentName(docId)).toPath());
+            documentWords[docId] = new String(content).split("\\s+");
+        }
+
+        for (String term : queryTerms) {
+            String message = context + " term " + term;
+            int[] counts = index.countOccurrences(term);
+            assertEquals(index.getDocumentCount(), counts.length, message);
+            if (PhraseQuery.parse(term) == null && FuzzyQuery.parse(term) == null) {
+                for (int docId = 0; docId < counts.length; docId++) {
+                    assertEquals(countContaining(documentWords[docId], term), counts[docId], message + " doc " + docId);
+                }
+            }
+
+            // Every document with occurrences in order, none without, within the frequency bound
+            TermCursor cursor = index.termCursor(term);
+            int documentFrequency = 0;
+            for (int docId = 0; docId < counts.length; docId++) {
+                if (counts[docId] > 0) {
+                    documentFrequency++;
+                    assertEquals(docId, cursor.nextDoc(), message);
+                    assertEquals(counts[docId], cursor.count(), message + " doc " + docId);
+                    assertTrue((double) counts[docId] / index.getDocumentLength(docId) <= cursor.maxTermFrequency() + 1e-12,
+                            message + " bound");
+                }
+            }
+            assertEquals(TermCursor.NO_MORE_DOCS, cursor.nextDoc(), message);
+            assertEquals(documentFrequency, index.documentFrequency(term), message + " document frequency");
+
+            // Jumps of random length land on the first document at or after the target
+            cursor = index.termCursor(term);
+            int target = 0;
+            while (true) {
+                target += random.nextInt(40);
+                int expected = next(counts, target);
+                int docId = cursor.advance(target);
+                assertEquals(expected, docId, message + " advance " + target);
+                if (docId == TermCursor.NO_MORE_DOCS) {
+                    break;
+                }
+                assertEquals(counts[docId], cursor.count(), message + " doc " + docId);
+                assertEquals(docId, cursor.advance(target), message + " advance to an earlier target");
+                target = docId + 1;
+            }
+        }
+    }
+
+    // Words of the document containing the query word, case insensitive, the way the scan counts them
+    private static int countContaining(String[] words, String queryWord) {
+        String lowerCaseWord = queryWord.toLowerCase();
+        int count = 0;
+        for (String word : words) {
+            if (!word.isEmpty() && word.toLowerCase().contains(lowerCaseWord)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int next(int[] counts, int target) {
+        for (int docId = target; docId < counts.length; docId++) {
+            if (counts[docId] > 0) {
+                return docId;
+            }
+        }
+        return TermCursor.NO_MORE_DOCS;
+    }
+}
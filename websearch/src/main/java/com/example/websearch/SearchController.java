@@ -1,11 +1,19 @@
 package com.example.websearch;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
-import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
 
 @Controller
 public class SearchController {
@@ -13,22 +21,57 @@ public class SearchController {
     @Autowired
     private SearchService searchService;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @GetMapping("/")
     public String index() {
         return "index";
     }
 
+    // The servlet thread is released while the Coordinator runs the query,
+    // the page is rendered when the results of this request arrive
     @PostMapping("/search")
-    public String search(@RequestParam("query") String query, Model model) {
+    public DeferredResult<ModelAndView> search(@RequestParam("query") String query) {
+        DeferredResult<ModelAndView> deferredResult = new DeferredResult<>(searchService.getSearchTimeoutMillis() + 5000);
+        Timer.Sample request = Timer.start(meterRegistry);
 
-        SearchResponse searchResponse = searchService.sendQueryToLeader(query);
+        searchService.sendQueryToLeader(query).whenComplete((searchResponse, e) -> {
+            ModelAndView modelAndView = new ModelAndView("index");
+            modelAndView.addObject("query", query);
+            modelAndView.addObject("results", e == null ? searchResponse.getResponse() : Map.of("Error", 0.0));
+            modelAndView.addObject("partial", e == null && searchResponse.isPartial());
+            deferredResult.setResult(modelAndView);
+            request.stop(meterRegistry.timer("websearch.request", "mode", "page"));
+        });
 
+        return deferredResult;
+    }
 
-        model.addAttribute("query", query);
-        model.addAttribute("results", WebSearchResult.getResults());
+    // Stream the merged ranking as workers answer: "partial" events with the results known so far,
+    // then one "complete" event with the final results. Events carry a SearchResponse as JSON.
+    @GetMapping(value = "/search/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamSearch(@RequestParam("query") String query) {
+        SseEmitter emitter = new SseEmitter(searchService.getSearchTimeoutMillis() + 5000);
+        Timer.Sample request = Timer.start(meterRegistry);
 
+        searchService.sendQueryToLeader(query, partialResponse -> send(emitter, "partial", partialResponse))
+                .whenComplete((searchResponse, e) -> {
+                    send(emitter, "complete", e == null ? searchResponse : new SearchResponse(Map.of("Error", 0.0)));
+                    emitter.complete();
+                    request.stop(meterRegistry.timer("websearch.request", "mode", "stream"));
+                });
 
-        return "index";
+        return emitter;
+    }
+
+    private void send(SseEmitter emitter, String eventName, SearchResponse results) {
+        try {
+            emitter.send(SseEmitter.event().name(eventName).data(results));
+        } catch (IOException | IllegalStateException e) {
+            // The browser went away, the remaining events are dropped
+            System.err.println("Error streaming search results: " + e.getMessage());
+        }
     }
 
 }
@@ -7,9 +7,15 @@ public class SearchResponse implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private Map<String, Double> response;
+    private boolean partial; // Some workers did not answer in time, their documents are missing
 
     public SearchResponse(Map<String, Double> response) {
+        this(response, false);
+    }
+
+    public SearchResponse(Map<String, Double> response, boolean partial) {
         this.response = response;
+        this.partial = partial;
     }
 
     public Map<String, Double> getResponse() {
@@ -20,10 +26,19 @@ public class SearchResponse implements Serializable {
         this.response = response;
     }
 
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
     @Override
     public String toString() {
         return "SearchResponse{" +
                 "response=" + response +
+                ", partial=" + partial +
                 '}';
     }
 }
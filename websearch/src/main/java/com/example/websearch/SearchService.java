@@ -1,7 +1,12 @@
 package com.example.websearch;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
@@ -9,27 +14,68 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 @Service
 public class SearchService {
+    private static final Logger logger = LoggerFactory.getLogger(SearchService.class);
 
     private ZooKeeper zooKeeper;
     private String leaderAddress;
     private ServerSocket serverSocket; // ServerSocket مشترك
+    // Time a search waits for the results of the Coordinator
+    private static final long SEARCH_TIMEOUT_MILLIS = Long.getLong("search.timeoutMillis", 30000);
+    // ZooKeeper ensemble of the cluster, host:port[,host:port...]
+    private static final String ZOOKEEPER_ADDRESS = System.getProperty("zookeeper.address", "192.168.184.129:2181");
+    // Port the Coordinator sends the results to, it must match the Coordinator's search.resultsPort
+    private static final int RESULTS_PORT = Integer.getInteger("search.resultsPort", 8082);
 
-    public SearchService() {
+    // Searches waiting for their results, by request id. The Coordinator echoes the id with the results.
+    private final Map<Long, PendingSearch> pendingSearches = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ExecutorService leaderExecutor = Executors.newCachedThreadPool(); // Blocking sends to the leader
+    private final MeterRegistry meterRegistry;
+    private final Counter completeResults; // Final rankings received from the Coordinator
+    private final Counter partialResults; // Intermediate rankings of streamed searches
+
+    // A search sent to the leader, with the listener of its partial results when it is streamed
+    private static class PendingSearch {
+        final CompletableFuture<SearchResponse> result = new CompletableFuture<>();
+        final Consumer<SearchResponse> progressListener;
+
+        PendingSearch(Consumer<SearchResponse> progressListener) {
+            this.progressListener = progressListener;
+        }
+
+        // Partial results arriving after the final ones are dropped
+        synchronized void progress(SearchResponse response) {
+            if (progressListener != null && !result.isDone()) {
+                progressListener.accept(response);
+            }
+        }
+
+        synchronized void complete(SearchResponse response) {
+            result.complete(response);
+        }
+    }
+
+    public SearchService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.completeResults = meterRegistry.counter("websearch.coordinator.results", "type", "complete");
+        this.partialResults = meterRegistry.counter("websearch.coordinator.results", "type", "partial");
+        meterRegistry.gauge("websearch.searches.pending", pendingSearches, Map::size);
         connectToZooKeeper();
         watchLeaderNode();
         startServerSocketListener(); // بدء تشغيل listener عند إنشاء الخدمة
     }
 
     private void connectToZooKeeper() {
-        String zookeeperAddress = "192.168.184.129:2181";
         try {
-            zooKeeper = new ZooKeeper(zookeeperAddress, 3000, event -> {
+            zooKeeper = new ZooKeeper(ZOOKEEPER_ADDRESS, 3000, event -> {
                 if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
                     System.out.println("Connected to ZooKeeper");
                 }
@@ -69,7 +115,7 @@ public class SearchService {
 
     private void startServerSocketListener() {
         try {
-            serverSocket = new ServerSocket(8082); // فتح ServerSocket مرة واحدة
+            serverSocket = new ServerSocket(RESULTS_PORT); // فتح ServerSocket مرة واحدة
             System.out.println("Web Server is waiting for results from Coordinator...");
 
             // تشغيل خيط لمعالجة الاتصالات
@@ -89,14 +135,33 @@ public class SearchService {
         }
     }
 
+    // The Coordinator sends the request id of the search, its ranked results, whether they are final
+    // and whether some workers are missing from them
+    @SuppressWarnings("unchecked")
     private void handleClientRequest(Socket clientSocket) {
         try (ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream())) {
-            String resultsString = (String) in.readObject();
-            System.out.println("Results received from Coordinator: " + resultsString);
-
-            Map<String, Double> results = convertStringToMap(resultsString);
-            WebSearchResult.setResults(results);
+            Object header = in.readObject();
+            if (!(header instanceof Long)) {
+                System.err.println("Ignoring results without request id from Coordinator: " + header);
+                return;
+            }
+            long requestId = (Long) header;
+            Map<String, Double> results = (Map<String, Double>) in.readObject();
+            boolean complete = (Boolean) in.readObject();
+            boolean partial = (Boolean) in.readObject();
+            logger.debug("{} received from Coordinator for request {} ({} documents)", complete ? "Results" : "Partial results", requestId, results.size());
+            (complete ? completeResults : partialResults).increment();
 
+            PendingSearch pendingSearch = complete ? pendingSearches.remove(requestId) : pendingSearches.get(requestId);
+            if (pendingSearch != null) {
+                if (complete) {
+                    pendingSearch.complete(new SearchResponse(results, partial));
+                } else {
+                    pendingSearch.progress(new SearchResponse(results, partial));
+                }
+            } else {
+                System.err.println("No pending search for request " + requestId + ", it may have timed out");
+            }
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error handling Coordinator results: " + e.getMessage());
         } finally {
@@ -108,7 +173,7 @@ public class SearchService {
         }
     }
 
-    public Map<String, Double> convertStringToMap(String responseString) {
+    public static Map<String, Double> convertStringToMap(String responseString) {
         Map<String, Double> map = new LinkedHashMap<>();
         responseString = responseString.substring(1, responseString.length() - 1);
         String[] entries = responseString.split(", ");
@@ -123,25 +188,66 @@ public class SearchService {
         return map;
     }
 
-    public SearchResponse sendQueryToLeader(String query) {
+    // Send the query to the leader tagged with a new request id.
+    // The returned future completes when the Coordinator sends back the results with the same id,
+    // or with an error response when the leader cannot be reached or the search times out.
+    public CompletableFuture<SearchResponse> sendQueryToLeader(String query) {
+        return sendQueryToLeader(query, null);
+    }
+
+    // Same as sendQueryToLeader(query), the listener also receives the partial rankings merged by the Coordinator
+    // as the workers answer
+    public CompletableFuture<SearchResponse> sendQueryToLeader(String query, Consumer<SearchResponse> progressListener) {
         if (leaderAddress == null) {
-            return new SearchResponse(Map.of("Error", 0.0));
+            return CompletableFuture.completedFuture(new SearchResponse(Map.of("Error", 0.0)));
         }
 
         String[] addressParts = leaderAddress.split(":");
         String leaderIp = addressParts[0];
         int leaderPort = Integer.parseInt(addressParts[1]);
 
-        try (Socket socket = new Socket(leaderIp, leaderPort)) {
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            System.out.println("Sending query to leader at: " + leaderIp + ":" + leaderPort);
-            out.writeObject(query);
+        long requestId = nextRequestId.incrementAndGet();
+        PendingSearch pendingSearch = new PendingSearch(progressListener);
+        pendingSearches.put(requestId, pendingSearch);
+        Timer.Sample dispatch = Timer.start(meterRegistry);
 
-            return new SearchResponse(Map.of("Status", 1.0));
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new SearchResponse(Map.of("Error", 0.0));
+        leaderExecutor.execute(() -> {
+            try (Socket socket = new Socket(leaderIp, leaderPort)) {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                logger.debug("Sending query {} to leader at: {}:{}", requestId, leaderIp, leaderPort);
+                out.writeObject(requestId);
+                out.writeObject(query);
+                out.writeObject(progressListener != null); // Ask for the partial rankings
+                out.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+                pendingSearch.complete(new SearchResponse(Map.of("Error", 0.0)));
+            }
+        });
+
+        return pendingSearch.result
+                .completeOnTimeout(new SearchResponse(Map.of("Timeout", 0.0)), SEARCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> {
+                    pendingSearches.remove(requestId);
+                    // Time from sending the query to the leader until its final results, by outcome
+                    dispatch.stop(meterRegistry.timer("websearch.leader.dispatch", "outcome", outcome(response, e)));
+                });
+    }
+
+    // Outcome of a search: complete, partial, timeout or error. Also used by the load test to count its answers,
+    // so that they fall in the same buckets as the dispatch timer
+    public static String outcome(SearchResponse response, Throwable e) {
+        if (e != null || response.getResponse().containsKey("Error")) {
+            return "error";
         }
+        if (response.getResponse().containsKey("Timeout")) {
+            return "timeout";
+        }
+        return response.isPartial() ? "partial" : "complete";
+    }
+
+    public long getSearchTimeoutMillis() {
+        return SEARCH_TIMEOUT_MILLIS;
     }
 }
 